@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new TimingWheel();
     }
 
     /**
@@ -120,17 +118,62 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Tests whether the current thread is running an interrupt handler, as
+     * when a device or the timer wakes up a thread that was waiting for it.
+     * A handler that switches to another thread does not count as running
+     * in that thread.
+     *
+     * @return	<tt>true</tt> if the current thread is in an interrupt
+     *		handler.
+     */
+    public boolean inHandler() {
+	TCB tcb = TCB.currentTCB();
+	return tcb != null && tcb.handlerDepth > 0;
+    }
+
+    /**
+     * Advance the simulated time to the next pending interrupt and invoke
+     * the handlers that are due then. This is what the CPU does when there
+     * is nothing to run: rather than ticking one kernel tick at a time until
+     * something happens, the clock skips directly to when it will. The
+     * skipped time is counted as kernel time. Interrupts must be disabled.
+     *
+     * <p>
+     * Returns immediately if no interrupt is pending.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	if (pending.isEmpty())
+	    return;
+
+	Stats stats = privilege.stats;
+
+	if (nextDue > stats.totalTicks) {
+	    Lib.debug(dbgInt, "Idling until time = " + nextDue);
+
+	    stats.kernelTicks += nextDue - stats.totalTicks;
+	    stats.totalTicks = nextDue;
+	}
+
+	checkIfDue();
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = newPendingInterrupt(time, type, handler);
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
 	pending.add(toOccur);
+
+	if (time < nextDue)
+	    nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,8 +188,43 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
+	checkAfterTick();
+    }
+
+    private int quietUserTicks() {
+	// with interrupt debugging on, every tick gets printed individually
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	if (nextDue == Long.MAX_VALUE)
+	    return Integer.MAX_VALUE;
+
+	// an interrupt can already be overdue, if a handler that fell due at
+	// the same time as it switched threads
+	long quiet = (nextDue - privilege.stats.totalTicks - 1) / Stats.UserTick;
+
+	return (int) Math.max(0, Math.min(quiet, Integer.MAX_VALUE));
+    }
+
+    private void tickUser(int count) {
+	Lib.assertTrue(count > 0 && count-1 <= quietUserTicks());
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += (long) count * Stats.UserTick;
+	stats.totalTicks += (long) count * Stats.UserTick;
+
+	checkAfterTick();
+    }
+
+    private void checkAfterTick() {
+	Stats stats = privilege.stats;
+
 	if (Lib.test(dbgInt))
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
+	// nothing can be due yet, so there is no need to look
+	else if (stats.totalTicks < nextDue)
+	    return;
 
 	enabled = false;
 	checkIfDue();
@@ -164,36 +242,100 @@ public final class Interrupt {
 	if (pending.isEmpty())
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending.first().time > time) {
+	    pending.advance(time);
 	    return;
+	}
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
+	while (!pending.isEmpty() && pending.first().time <= time) {
+	    PendingInterrupt next = pending.first();
 	    pending.remove(next);
+	    updateNextDue();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // recycle the node before running the handler, which will most
+	    // likely schedule another interrupt of the same type
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    freePendingInterrupt(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
-			
-	    next.handler.run();
+	    Lib.debug(dbgInt, "  " + type);
+
+	    TCB tcb = TCB.currentTCB();
+	    if (tcb != null)
+		tcb.handlerDepth++;
+
+	    handler.run();
+
+	    if (tcb != null)
+		tcb.handlerDepth--;
 	}
 
+	pending.advance(time);
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Recompute <tt>nextDue</tt> from the pending interrupt set. Must be
+     * called whenever an interrupt is removed from the set.
+     */
+    private void updateNextDue() {
+	if (pending.isEmpty())
+	    nextDue = Long.MAX_VALUE;
+	else
+	    nextDue = pending.first().time;
+    }
+
+    /**
+     * Return a pending interrupt node with the specified fields, reusing a
+     * node from the free list if there is one.
+     */
+    private PendingInterrupt newPendingInterrupt(long time, String type,
+						 Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+
+	if (toOccur != null)
+	    freeList = toOccur.next;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.next = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a node that is no longer pending to the free list.
+     */
+    private void freePendingInterrupt(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.prev = null;
+	toOccur.next = freeList;
+	freeList = toOccur;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = pending.toArray();
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -202,11 +344,7 @@ public final class Interrupt {
     }
 
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	PendingInterrupt() {
 	}
 
 	public int compareTo(Object o) {
@@ -230,14 +368,222 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+
+	/** Links within a timing wheel slot, or the free list. */
+	private PendingInterrupt prev, next;
+	/** The wheel level and slot holding this interrupt. */
+	private int level, slot;
+    }
+
+    /**
+     * A hierarchical timing wheel holding the pending interrupts.
+     *
+     * <p>
+     * Level <i>l</i> has 64 slots, each covering 64<sup><i>l</i></sup>
+     * ticks. An interrupt is kept at the lowest level whose slots all lie in
+     * the same 64<sup><i>l</i>+1</sup>-tick span as the wheel's current time,
+     * so each level-0 slot holds interrupts due at exactly one time (kept in
+     * <tt>id</tt> order), and the earliest interrupt is found with one bitmap
+     * lookup. When the current time moves into a new span, the one slot per
+     * level that now overlaps it is cascaded down. Interrupts too far in the
+     * future for the top level wait on an overflow list.
+     */
+    private class TimingWheel {
+	TimingWheel() {
+	}
+
+	boolean isEmpty() {
+	    return size == 0;
+	}
+
+	/**
+	 * Return the pending interrupt that is due first, breaking ties by
+	 * <tt>id</tt>, without removing it.
+	 */
+	PendingInterrupt first() {
+	    Lib.assertTrue(size > 0);
+
+	    if (occupied[0] != 0)
+		return slots[0][Long.numberOfTrailingZeros(occupied[0])];
+
+	    for (int level=1; level<numLevels; level++) {
+		if (occupied[level] != 0) {
+		    int slot = Long.numberOfTrailingZeros(occupied[level]);
+		    return earliest(slots[level][slot]);
+		}
+	    }
+
+	    return earliest(slots[numLevels][0]);
+	}
+
+	void add(PendingInterrupt toOccur) {
+	    Lib.assertTrue(toOccur.time > now);
+
+	    int level = levelOf(toOccur.time);
+	    int slot = (level < numLevels) ? slotOf(toOccur.time, level) : 0;
+
+	    toOccur.level = level;
+	    toOccur.slot = slot;
+
+	    PendingInterrupt head = slots[level][slot];
+
+	    if (level == 0 && head != null) {
+		// same time, so keep the slot in id order
+		PendingInterrupt after = head;
+		while (after.next != null && after.next.id < toOccur.id)
+		    after = after.next;
+
+		if (after.id < toOccur.id) {
+		    toOccur.prev = after;
+		    toOccur.next = after.next;
+		    if (after.next != null)
+			after.next.prev = toOccur;
+		    after.next = toOccur;
+		    size++;
+		    return;
+		}
+	    }
+
+	    toOccur.prev = null;
+	    toOccur.next = head;
+	    if (head != null)
+		head.prev = toOccur;
+	    slots[level][slot] = toOccur;
+
+	    if (level < numLevels)
+		occupied[level] |= 1L << slot;
+
+	    size++;
+	}
+
+	void remove(PendingInterrupt toOccur) {
+	    int level = toOccur.level, slot = toOccur.slot;
+
+	    if (toOccur.prev != null)
+		toOccur.prev.next = toOccur.next;
+	    else
+		slots[level][slot] = toOccur.next;
+
+	    if (toOccur.next != null)
+		toOccur.next.prev = toOccur.prev;
+
+	    if (level < numLevels && slots[level][slot] == null)
+		occupied[level] &= ~(1L << slot);
+
+	    toOccur.prev = toOccur.next = null;
+	    size--;
+	}
+
+	/**
+	 * Move the wheel's current time forward to <i>time</i>. No pending
+	 * interrupt may be due at or before <i>time</i>.
+	 */
+	void advance(long time) {
+	    if (time <= now)
+		return;
+
+	    long old = now;
+	    now = time;
+
+	    // only the slot at the new time's position on each level can hold
+	    // interrupts that belong on a lower level now
+	    for (int level=numLevels-1; level>0; level--)
+		cascade(level, slotOf(time, level));
+
+	    if ((time >>> (slotBits*numLevels)) !=
+		(old >>> (slotBits*numLevels)))
+		cascade(numLevels, 0);
+	}
+
+	PendingInterrupt[] toArray() {
+	    PendingInterrupt[] result = new PendingInterrupt[size];
+	    int count = 0;
+
+	    for (int level=0; level<=numLevels; level++) {
+		for (int slot=0; slot<slots[level].length; slot++) {
+		    for (PendingInterrupt toOccur = slots[level][slot];
+			 toOccur != null; toOccur = toOccur.next)
+			result[count++] = toOccur;
+		}
+	    }
+
+	    return result;
+	}
+
+	private void cascade(int level, int slot) {
+	    PendingInterrupt toOccur = slots[level][slot];
+	    if (toOccur == null)
+		return;
+
+	    slots[level][slot] = null;
+	    if (level < numLevels)
+		occupied[level] &= ~(1L << slot);
+
+	    while (toOccur != null) {
+		PendingInterrupt next = toOccur.next;
+		size--;
+		add(toOccur);
+		toOccur = next;
+	    }
+	}
+
+	private PendingInterrupt earliest(PendingInterrupt toOccur) {
+	    PendingInterrupt first = toOccur;
+
+	    for (; toOccur != null; toOccur = toOccur.next) {
+		if (toOccur.compareTo(first) < 0)
+		    first = toOccur;
+	    }
+
+	    return first;
+	}
+
+	private int levelOf(long time) {
+	    for (int level=0; level<numLevels; level++) {
+		int shift = slotBits*(level+1);
+		if ((time >>> shift) == (now >>> shift))
+		    return level;
+	    }
+
+	    return numLevels;
+	}
+
+	private int slotOf(long time, int level) {
+	    return (int) (time >>> (slotBits*level)) & (slotsPerLevel-1);
+	}
+
+	private static final int slotBits = 6;
+	private static final int slotsPerLevel = 1 << slotBits;
+	private static final int numLevels = 4;
+
+	/** The slots of each level, plus the overflow list as a last level. */
+	private PendingInterrupt[][] slots = {
+	    new PendingInterrupt[slotsPerLevel],
+	    new PendingInterrupt[slotsPerLevel],
+	    new PendingInterrupt[slotsPerLevel],
+	    new PendingInterrupt[slotsPerLevel],
+	    new PendingInterrupt[1]
+	};
+	/** A bit for each non-empty slot of each level. */
+	private long[] occupied = new long[numLevels];
+	/** The wheel's current time. All pending interrupts are later. */
+	private long now = 0;
+	private int size = 0;
     }
     
     private long numPendingInterruptsCreated = 0;
+    /** Pending interrupt nodes available for reuse. */
+    private PendingInterrupt freeList = null;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private TimingWheel pending;
+    /**
+     * The time at which the earliest pending interrupt is due, or
+     * <tt>Long.MAX_VALUE</tt> if there are no pending interrupts.
+     */
+    private long nextDue = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +595,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public int quietUserTicks() {
+	    return Interrupt.this.quietUserTicks();
+	}
+
+	public void tickUser(int count) {
+	    Interrupt.this.tickUser(count);
+	}
     }
 }
@@ -100,6 +100,34 @@ public final class Machine {
 	terminate();
     }
 
+    /**
+     * Record the number of free physical pages, as counted by the kernel's
+     * page allocator, in the statistics printed when Nachos halts.
+     *
+     * @param	numFreePages	the number of free physical pages.
+     */
+    public static void setNumFreePages(int numFreePages) {
+	stats.numFreePages = numFreePages;
+	stats.minFreePages = Math.min(stats.minFreePages, numFreePages);
+    }
+
+    /**
+     * Count a page fault handled by the kernel. With a TLB, the processor
+     * only sees TLB misses, so a kernel that pages counts its own faults.
+     */
+    public static void countPageFault() {
+	stats.numPageFaults++;
+    }
+
+    /**
+     * Return the number of page faults so far.
+     *
+     * @return	the number of page faults.
+     */
+    public static int getNumPageFaults() {
+	return stats.numPageFaults;
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -39,6 +41,9 @@ public final class Processor {
 
 	usingTLB =
 	    (clsVMKernel != null && clsVMKernel.isAssignableFrom(clsKernel));
+
+	translating = Config.getBoolean("Processor.translate", false);
+	debugTranslations = Lib.test(dbgProcessor);
 	
 	this.numPhysPages = numPhysPages;
 
@@ -46,6 +51,9 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	flushTranslationCache();
+	decodedPages = new DecodedInstruction[numPhysPages][];
+	blockPages = new BasicBlock[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -83,6 +91,13 @@ public final class Processor {
     
     /**
      * Start executing instructions at the current PC. Never returns.
+     *
+     * <p>
+     * If the <tt>Processor.translate</tt> key in <tt>nachos.conf</tt> is
+     * set, basic blocks that are entered often are translated into runs of
+     * predecoded instructions, which are executed without translating the PC
+     * or advancing the simulated time after every instruction. The observable
+     * behavior is the same as that of the interpreter.
      */
     public void run() {
 	Lib.debug(dbgProcessor, "starting program in current thread");
@@ -92,17 +107,184 @@ public final class Processor {
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// the block tier skips the per-instruction debugging output
+	boolean translate = translating && !Lib.test(dbgProcessor) &&
+	    !Lib.test(dbgDisassemble) && !Lib.test(dbgFullDisassemble);
 	
 	while (true) {
+	    if (translate && runBlock(inst))
+		continue;
+
+	    // interpret every instruction that can retire before the next
+	    // interrupt falls due, then account for all of their ticks at once
+	    int batch = 1;
+	    if (!translate)
+		batch += Math.min(privilege.interrupt.quietUserTicks(),
+				  Integer.MAX_VALUE-1);
+
+	    int retired = 0;
 	    try {
-		inst.run();
+		while (retired < batch) {
+		    inst.run();
+		    retired++;
+		}
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the time at which the exception occurred
+		if (retired > 0)
+		    privilege.interrupt.tickUser(retired);
+
 		e.handle();
+		retired = 1;
 	    }
 
+	    privilege.interrupt.tickUser(retired);
+	}
+    }
+
+    /**
+     * Execute the translated basic block starting at the current PC, if there
+     * is one and it is hot enough, and account for the simulated time it
+     * takes. Falls back to the interpreter (by returning <tt>false</tt>)
+     * whenever running the whole block could let an interrupt fall due in
+     * the middle of it, and stops early if the block's code has been
+     * overwritten since it was translated.
+     *
+     * @param	inst	the instruction state to execute the block with.
+     * @return	<tt>true</tt> if any instructions were executed, or
+     *		<tt>false</tt> if the caller should interpret the next
+     *		instruction instead.
+     */
+    private boolean runBlock(Instruction inst) {
+	int pc = registers[regPC];
+
+	// blocks are only ever entered at the top, never in a delay slot
+	if (registers[regNextPC] != pc+4)
+	    return false;
+
+	int paddr;
+	try {
+	    paddr = translate(pc, 4, false);
+	}
+	catch (MipsException e) {
+	    // exactly what the interpreter would have done on this fetch
+	    e.handle();
 	    privilege.interrupt.tick(false);
+	    return true;
+	}
+
+	DecodedInstruction[] code = lookupBlock(paddr);
+	if (code == null || code.length > privilege.interrupt.quietUserTicks()+1)
+	    return false;
+
+	int retired = 0;
+	try {
+	    while (retired < code.length) {
+		DecodedInstruction decoded = code[retired];
+
+		// self-modifying code: let the interpreter pick up the new word
+		if (Lib.bytesToInt(mainMemory, paddr) != decoded.value)
+		    break;
+
+		inst.run(decoded);
+		retired++;
+		paddr += 4;
+	    }
+	}
+	catch (MipsException e) {
+	    if (retired > 0)
+		privilege.interrupt.tickUser(retired);
+
+	    e.handle();
+	    privilege.interrupt.tick(false);
+	    return true;
+	}
+
+	if (retired == 0)
+	    return false;
+
+	privilege.interrupt.tickUser(retired);
+	return true;
+    }
+
+    /**
+     * Find the translated basic block starting at physical address
+     * <i>paddr</i>. A block is only translated once it has been entered
+     * <tt>translateThreshold</tt> times.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the predecoded instructions of the block, or <tt>null</tt> if
+     *		the block is not hot yet or cannot be translated.
+     */
+    private DecodedInstruction[] lookupBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) >> 2;
+
+	BasicBlock[] page = blockPages[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize/4];
+	    blockPages[ppn] = page;
+	}
+
+	BasicBlock block = page[index];
+	if (block == null) {
+	    block = new BasicBlock();
+	    page[index] = block;
+	}
+
+	if (block.code == null && ++block.entries >= translateThreshold)
+	    block.code = translateBlock(paddr);
+
+	if (block.code == null || block.code.length == 0)
+	    return null;
+
+	return block.code;
+    }
+
+    /**
+     * Translate the basic block starting at physical address <i>paddr</i>.
+     * The block ends with the delay slot of its first branch, with the first
+     * instruction that always raises an exception, or at the end of the
+     * page, whichever comes first. A branch whose delay slot is on the next
+     * page is left for the interpreter.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the predecoded instructions of the block.
+     */
+    private DecodedInstruction[] translateBlock(int paddr) {
+	int pageEnd = (paddr / pageSize + 1) * pageSize;
+	int length = 0;
+	DecodedInstruction[] code = new DecodedInstruction[maxBlockLength];
+
+	for (int addr=paddr; addr<pageEnd && length<maxBlockLength; addr+=4) {
+	    DecodedInstruction decoded =
+		predecode(addr, Lib.bytesToInt(mainMemory, addr));
+
+	    if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		if (addr+4 >= pageEnd || length+2 > maxBlockLength)
+		    break;
+
+		code[length++] = decoded;
+		code[length++] = predecode(addr+4,
+					   Lib.bytesToInt(mainMemory, addr+4));
+		break;
+	    }
+
+	    code[length++] = decoded;
+
+	    switch (decoded.operation) {
+	    case Mips.SYSCALL:
+	    case Mips.UNIMPL:
+	    case Mips.INVALID:
+		addr = pageEnd;
+		break;
+	    }
 	}
+
+	DecodedInstruction[] block = new DecodedInstruction[length];
+	System.arraycopy(code, 0, block, 0, length);
+	return block;
     }
 
     /**
@@ -175,6 +357,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	flushTranslationCache();
     }
 
     /**
@@ -216,6 +399,7 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+	flushTranslationCache();
     }
 
     /**
@@ -238,6 +422,53 @@ public final class Processor {
 	return mainMemory;
     }
 
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page. The processor does this itself whenever a user store or a COFF
+     * section load touches the page; a kernel that copies code into physical
+     * memory by some other means may call this to release the cached
+     * decodings early. Stale entries are never executed either way, since
+     * each cached decoding is checked against the instruction word in memory
+     * before it is used.
+     *
+     * @param	ppn	the physical page whose cached decodings to discard.
+     */
+    public void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+	blockPages[ppn] = null;
+    }
+
+    /**
+     * Return the predecoded form of the instruction word <i>value</i> stored
+     * at physical address <i>paddr</i>, decoding it and caching the result if
+     * there is no matching decoding cached for that address yet.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @param	value	the instruction word currently stored at
+     *			<i>paddr</i>.
+     * @return	the predecoded instruction.
+     */
+    private DecodedInstruction predecode(int paddr, int value) {
+	int ppn = paddr / pageSize;
+	int index = (paddr % pageSize) >> 2;
+
+	DecodedInstruction[] page = decodedPages[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodedPages[ppn] = page;
+	}
+
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,6 +525,15 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
+	// fast path: this kind of access to this page has been checked already
+	if (!debugTranslations && (vaddr & (size-1)) == 0) {
+	    int vpn = pageFromAddress(vaddr);
+	    int slot = translationCacheSlot(vpn, writing);
+
+	    if (cachedVPNs[slot] == vpn)
+		return cachedBases[slot] + offsetFromAddress(vaddr);
+	}
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -357,11 +597,39 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	// the bits just set stay set until the kernel next runs, and entering
+	// the kernel flushes the cache, so later hits need not set them again
+	int slot = translationCacheSlot(vpn, writing);
+	cachedVPNs[slot] = vpn;
+	cachedBases[slot] = ppn*pageSize;
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
     }
 
+    /**
+     * Return the slot in the translation cache used for the specified kind
+     * of access to the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	writing	<tt>true</tt> if the access is a write.
+     * @return	the index into <tt>cachedVPNs</tt> and <tt>cachedBases</tt>.
+     */
+    private static int translationCacheSlot(int vpn, boolean writing) {
+	return ((vpn & (translationCacheSize-1)) << 1) | (writing ? 1 : 0);
+    }
+
+    /**
+     * Forget every translation cached by <tt>translate()</tt>. Called
+     * whenever the page table or the TLB changes, and whenever the kernel is
+     * about to run (to handle an exception or an interrupt), since the kernel
+     * may modify the current page table's entries in place.
+     */
+    private void flushTranslationCache() {
+	Arrays.fill(cachedVPNs, -1);
+    }
+
     /**
      * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
      * and return the result.
@@ -405,9 +673,14 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+
+	// self-modifying code: forget what we decoded from this page
+	decodedPages[paddr / pageSize] = null;
+	blockPages[paddr / pageSize] = null;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
     }
 
     /**
@@ -547,6 +820,21 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /**
+     * Number of virtual pages in the direct-mapped translation cache used by
+     * <tt>translate()</tt>. Must be a power of two.
+     */
+    private static final int translationCacheSize = 64;
+    /**
+     * The virtual page cached in each translation cache slot, or -1 if the
+     * slot is empty. Reads and writes of a page use separate slots.
+     */
+    private int[] cachedVPNs = new int[translationCacheSize*2];
+    /** The physical address of the page cached in each slot. */
+    private int[] cachedBases = new int[translationCacheSize*2];
+    /** <tt>true</tt> if every translation should be traced. */
+    private boolean debugTranslations;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
@@ -555,6 +843,24 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Predecoded instructions, indexed by physical page and then by word
+     * within the page. A page's array is allocated the first time an
+     * instruction is fetched from it, and dropped when the page is written.
+     */
+    private DecodedInstruction[][] decodedPages;
+    /**
+     * Translated basic blocks, indexed like <tt>decodedPages</tt> by the
+     * physical address of their first instruction.
+     */
+    private BasicBlock[][] blockPages;
+
+    /** <tt>true</tt> if hot basic blocks should be translated. */
+    private boolean translating;
+    /** The number of entries after which a basic block is translated. */
+    private static final int translateThreshold = 16;
+    /** The maximum number of instructions in a translated basic block. */
+    private static final int maxBlockLength = 64;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -566,6 +872,7 @@ public final class Processor {
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    flushTranslationCache();
 	}
     }
 
@@ -593,6 +900,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    flushTranslationCache();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -616,6 +924,16 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	public void run(DecodedInstruction decoded) throws MipsException {
+	    // already fetched and decoded by translateBlock()
+	    this.decoded = decoded;
+	    value = decoded.value;
+
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +944,57 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\treadMem vaddr=0x" +
+				   Lib.toHexString(registers[regPC]) +
+				   ", size=4");
+
+	    int paddr = translate(registers[regPC], 4, false);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tvalue read=0x" +
+				   Lib.toHexString(value, 8));
+
+	    decoded = predecode(paddr, value);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // everything that depends only on the instruction word was
+	    // worked out once, when the word was first fetched from memory
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1349,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1361,87 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * extracted once and cached per physical address by
+     * <tt>predecode()</tt>.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int simm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = simm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = simm & 0xFFFF;
+	    else
+		imm = simm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg, branchOffset;
+    }
+
+    /**
+     * A basic block that has been entered at least once, and its translation
+     * once it has been entered often enough.
+     */
+    private static class BasicBlock {
+	int entries = 0;
+	DecodedInstruction[] code = null;
+    }
+
     private static class Mips {
 	Mips() {
 	}
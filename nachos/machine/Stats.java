@@ -27,6 +27,9 @@ public final class Stats {
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
+	if (minFreePages != Integer.MAX_VALUE)
+	    System.out.println("Memory: free pages " + numFreePages
+			       + ", fewest free " + minFreePages);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
@@ -57,6 +60,16 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The number of physical pages the kernel has free, as last reported by
+     * its page allocator.
+     */
+    public int numFreePages = 0;
+    /**
+     * The smallest number of free physical pages there has been, or
+     * <tt>Integer.MAX_VALUE</tt> if the kernel has never reported any.
+     */
+    public int minFreePages = Integer.MAX_VALUE;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
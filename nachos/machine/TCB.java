@@ -5,7 +5,9 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -40,6 +42,55 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+
+	maxThreads = Config.getInteger("TCB.maxThreads",
+				       (virtualThreadBuilder != null) ?
+				       Integer.MAX_VALUE : 250);
+	Lib.assertTrue(maxThreads > 0);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> and
+     * <tt>Thread.Builder.unstarted(Runnable)</tt>, so that new TCBs can be
+     * bound to virtual threads. These only exist on newer JVMs, so they are
+     * found by reflection; if they are missing, TCBs keep using platform
+     * threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+	    Method unstarted =
+		Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+
+	    virtualThreadBuilder = builder;
+	    unstartedMethod = unstarted;
+	}
+	catch (Exception e) {
+	    System.out.print(" (no virtual threads)");
+	}
+    }
+
+    /**
+     * Create the Java thread that will run a new TCB. This is a virtual
+     * thread if <tt>TCB.virtualThreads</tt> is set and the JVM supports them,
+     * and a platform thread otherwise. Must be called with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+						       new Object[] { target });
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
     }
     
     /**
@@ -66,7 +117,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.get() < maxThreads);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -81,7 +132,7 @@ public final class TCB {
 	 * TCB. Whether or not this is the first TCB, it gets added to
 	 * runningThreads, and we save the target closure.
 	 */
-	runningThreads.add(this);
+	runningThreads.incrementAndGet();
 
 	this.target = target;
 
@@ -94,7 +145,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = newJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -244,16 +295,14 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (runningThreads.decrementAndGet() == 0)
 		privilege.exit(0);
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
-	    if (runningThreads.isEmpty())
+	    if (runningThreads.decrementAndGet() == 0)
 		privilege.exit(1);
 	    else
 		die();
@@ -280,29 +329,32 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * If <tt>interrupt()</tt> gets here first, its permit makes
+     * <tt>park()</tt> return immediately, so no wakeup can be lost. The loop
+     * only guards against <tt>park()</tt> returning for no reason.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,9 +380,18 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence. Set by <tt>TCB.maxThreads</tt>; the default is 250 for
+     * platform threads and unlimited for virtual threads.
+     */
+    private static int maxThreads = 250;
+
+    /**
+     * The <tt>Thread.Builder</tt> for virtual threads, and its
+     * <tt>unstarted(Runnable)</tt> method, or <tt>null</tt> if TCBs are bound
+     * to platform threads.
      */
-    public static final int maxThreads = 250;
+    private static Object virtualThreadBuilder = null;
+    private static Method unstartedMethod = null;
 
     /**
      * A reference to the currently running TCB. It is initialized to
@@ -348,18 +409,17 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
-     * added only in <tt>start(Runnable)</tt>, which can only be invoked once
-     * on each TCB object. TCB objects are removed only in each of the
-     * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
-     * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
-     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
-     * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * The number of <i>running</i> TCB objects. It is incremented only in
+     * <tt>start(Runnable)</tt>, which can only be invoked once on each TCB
+     * object, and decremented only in each of the <tt>catch</tt> clauses of
+     * <tt>threadroot()</tt>, one of which is always invoked on thread
+     * termination. The count is limited to <tt>maxThreads</tt> by
+     * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops it to zero,
+     * Nachos exits, so once the first TCB is created, it is basically never
+     * zero. It is atomic because a destroyed TCB decrements it after handing
+     * control back to the TCB that destroyed it.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static AtomicInteger runningThreads = new AtomicInteger();
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -381,14 +441,19 @@ public final class TCB {
 
     /**
      * <tt>true</tt> if and only if the Java thread bound to this TCB ought to
-     * be running. This is an entirely different condition from membership in
-     * <tt>runningThreads</tt>, which contains all TCB objects that have
+     * be running. This is an entirely different condition from being counted
+     * in <tt>runningThreads</tt>, which counts all TCB objects that have
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
+     *
+     * <p>
+     * This flag is <tt>volatile</tt> because it is the only thing handing
+     * control from one Java thread to the next: everything a TCB wrote
+     * before setting it is visible to the TCB that sees it set.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -396,6 +461,13 @@ public final class TCB {
      * will know that the current TCB is doomed.
      */
     private boolean done = false;
+
+    /**
+     * The number of interrupt handlers this TCB is running. Kept here rather
+     * than in <tt>Interrupt</tt> because a handler can switch to another
+     * thread before it returns.
+     */
+    int handlerDepth = 0;
     
     private KThread nachosThread = null;
     private boolean associated = false;
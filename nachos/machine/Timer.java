@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The kernel can instead put the timer in tickless mode, where it behaves
+ * like a one-shot timer: it only interrupts at the time most recently
+ * programmed with <tt>setNextInterrupt()</tt>.
  */
 public final class Timer {
     /**
@@ -27,7 +32,7 @@ public final class Timer {
 	this.privilege = privilege;
 	
 	timerInterrupt = new Runnable() {
-		public void run() { timerInterrupt(); }
+		public void run() { periodicInterrupt(); }
 	    };
 	
 	autoGraderInterrupt = new Runnable() {
@@ -50,6 +55,53 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Stop interrupting every 500 or so ticks, and only interrupt at times
+     * programmed with <tt>setNextInterrupt()</tt>. There is no way back.
+     */
+    public void setTickless() {
+	tickless = true;
+    }
+
+    /**
+     * Test whether the timer is in tickless mode.
+     *
+     * @return	<tt>true</tt> if <tt>setTickless()</tt> has been called.
+     */
+    public boolean isTickless() {
+	return tickless;
+    }
+
+    /**
+     * In tickless mode, arrange for the next timer interrupt to occur at
+     * <i>time</i>, or as soon as possible if that has already passed. If an
+     * interrupt is already programmed no later than <i>time</i>, it is kept;
+     * the handler should then program the next one when it runs.
+     *
+     * @param	time	the time of the next interrupt.
+     */
+    public void setNextInterrupt(long time) {
+	Lib.assertTrue(tickless);
+
+	time = Math.max(time, getTime()+1);
+	if (time >= nextInterrupt)
+	    return;
+
+	nextInterrupt = time;
+
+	// the interrupt programmed before this one, if any, is superseded and
+	// will find it no longer matches nextInterrupt
+	final long programmed = time;
+	privilege.interrupt.schedule(time - getTime(), "timer", new Runnable() {
+		public void run() {
+		    if (programmed == nextInterrupt) {
+			nextInterrupt = Long.MAX_VALUE;
+			timerInterrupt();
+		    }
+		}
+	    });
+    }
+
     /**
      * Get the current time.
      *
@@ -59,8 +111,16 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
-    private void timerInterrupt() {
+    private void periodicInterrupt() {
+	// the last periodic interrupt scheduled before switching to tickless
+	if (tickless)
+	    return;
+
 	scheduleInterrupt();
+	timerInterrupt();
+    }
+
+    private void timerInterrupt() {
 	scheduleAutoGraderInterrupt();
 
 	lastTimerInterrupt = getTime();
@@ -84,6 +144,10 @@ public final class Timer {
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
 
+    private boolean tickless = false;
+    /** In tickless mode, the time of the programmed interrupt. */
+    private long nextInterrupt = Long.MAX_VALUE;
+
     private Privilege privilege;
     private Runnable handler = null;
 }
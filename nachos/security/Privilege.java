@@ -158,6 +158,27 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of times <tt>tick(false)</tt> could be called in a
+	 * row before one of the calls would invoke an interrupt handler. This
+	 * is 0 if an interrupt is already overdue.
+	 *
+	 * @return	the number of user ticks that can pass without any
+	 *		interrupt falling due.
+	 */
+	public int quietUserTicks();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks.
+	 * This has the same effect as calling <tt>tick(false)</tt>
+	 * <i>count</i> times, so <i>count</i> must not exceed
+	 * <tt>quietUserTicks() + 1</tt>. A single tick is always allowed, and
+	 * handles any overdue interrupts.
+	 *
+	 * @param	count	the number of user ticks to advance.
+	 */
+	public void tickUser(int count);
     }
 
     /**
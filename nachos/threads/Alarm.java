@@ -1,17 +1,27 @@
 package nachos.threads;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.HashMap;
 
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending wake-ups are kept in a hashed timing wheel: <tt>wheelSize</tt>
+ * slots, each covering <tt>slotTicks</tt> ticks, with every wake-up in the
+ * slot its time hashes to. Adding or cancelling a wake-up takes constant
+ * time, and each timer interrupt only looks at the slots the clock has moved
+ * through since the last one.
+ *
+ * <p>
+ * If <tt>ThreadedKernel.tickless</tt> is set, the alarm puts the timer in
+ * tickless mode, and programs it for the earlier of the next wake-up and the
+ * time the scheduler next wants to preempt the current thread. With nothing
+ * sleeping and no preemption due, the timer does not interrupt at all.
  */
 public class Alarm {
-	// WaitingQ Variable
-	private PriorityQueue<KThread> waitingQ;
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
@@ -19,45 +29,155 @@ public class Alarm {
 	 * <p><b>Note</b>: Nachos will not function correctly with more than one
 	 * alarm.
 	 */
-
-
 	public Alarm() {
-		// 250 because thats the maximum possible number of threads
-		waitingQ = new PriorityQueue<KThread>(250, new SortQueueViaPriority());
+		wheel = new Timeout[wheelSize];
+		lastSlot = Machine.timer().getTime() / slotTicks;
 
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
+
+		if (Config.getBoolean("ThreadedKernel.tickless", false)) {
+			Machine.timer().setTickless();
+			rescheduleTimer();
+		}
 	}
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread
-	 * that should be run.
+	 * periodically (approximately every 500 clock ticks), or in tickless mode
+	 * when programmed. Causes the current thread to yield, forcing a context
+	 * switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
-		// Quick Return
-		if(waitingQ.isEmpty()){
+		wakeWaiters();
+
+		// preempt the current thread if the scheduler says its quantum is up
+		boolean preempt = ThreadedKernel.scheduler.timerInterrupt() ||
+			preemptAlways;
+
+		rescheduleTimer();
+
+		if (preempt)
+			KThread.yield();
+	}
+
+	/**
+	 * Set whether every timer interrupt preempts the current thread, whatever
+	 * the scheduler says, so that threads take turns every
+	 * <tt>Stats.TimerTicks</tt> or so even under a scheduler that never
+	 * preempts. Lets a benchmark run its threads under the same preemptive
+	 * scheduling whichever scheduler is configured.
+	 *
+	 * @param	preemptAlways	<tt>true</tt> to preempt on every timer
+	 *				interrupt.
+	 */
+	public void setPreemptAlways(boolean preemptAlways) {
+		this.preemptAlways = preemptAlways;
+
+		rescheduleTimer();
+	}
+
+	/**
+	 * In tickless mode, program the timer for the next time the alarm needs
+	 * an interrupt: the first pending wake-up, or the time returned by the
+	 * scheduler's <tt>preemptionTime()</tt>, whichever is earlier. The
+	 * scheduler should call this whenever that time moves earlier. Does
+	 * nothing if the timer is not tickless.
+	 */
+	public void rescheduleTimer() {
+		if (!Machine.timer().isTickless())
 			return;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Math.min(nextWakeUp(),
+				     ThreadedKernel.scheduler.preemptionTime());
+		if (preemptAlways)
+			time = Math.min(time, Machine.timer().getTime() + Stats.TimerTicks);
+		if (time != Long.MAX_VALUE)
+			Machine.timer().setNextInterrupt(time);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the time of the first pending wake-up, or
+	 * <tt>Long.MAX_VALUE</tt> if there are none. Slots are visited in clock
+	 * order starting from the current one, and the first slot holding a
+	 * wake-up for this trip around the wheel has the answer. If every
+	 * wake-up is further away than that, return the time the wheel comes
+	 * back around, which is early but soon enough.
+	 */
+	private long nextWakeUp() {
+		if (occupied == 0)
+			return Long.MAX_VALUE;
+
+		int start = (int) (lastSlot % wheelSize);
+		long remaining = Long.rotateRight(occupied, start);
+
+		while (remaining != 0) {
+			int offset = Long.numberOfTrailingZeros(remaining);
+			remaining &= remaining - 1;
+
+			long slotEnd = (lastSlot + offset + 1) * slotTicks;
+			long first = Long.MAX_VALUE;
+
+			for (Timeout timeout = wheel[(start + offset) % wheelSize];
+			     timeout != null; timeout = timeout.next) {
+				if (timeout.time < slotEnd)
+					first = Math.min(first, timeout.time);
+			}
+
+			if (first != Long.MAX_VALUE)
+				return first;
 		}
-		// Get the current Time
+
+		return (lastSlot + wheelSize) * slotTicks;
+	}
+
+	/**
+	 * Fire every pending wake-up that is due, visiting each slot the clock
+	 * has moved through since the last call, and the current slot again in
+	 * case it holds wake-ups later in the same slot.
+	 */
+	private void wakeWaiters() {
+		boolean intStatus = Machine.interrupt().disable();
+
 		long currentTime = Machine.timer().getTime();
+		long currentSlot = currentTime / slotTicks;
+		long firstSlot = Math.max(lastSlot, currentSlot - wheelSize + 1);
 
-		while(!waitingQ.isEmpty()){
-			if(waitingQ.element().alarmPriority <= currentTime){
-				// Get the element with the highest priority
-				KThread thread = waitingQ.element();
-				// Remove it from waiting
-				waitingQ.remove(thread);
-				// Make it ready
-				boolean intStatus = Machine.interrupt().disable();
-				thread.ready();
-				Machine.interrupt().restore(intStatus);
-			}else{
-				return;
+		lastSlot = currentSlot;
+		scans++;
+
+		for (long slot=firstSlot; slot<=currentSlot; slot++) {
+			int index = (int) (slot % wheelSize);
+			Timeout timeout = wheel[index];
+
+			while (timeout != null) {
+				// one added by a handler during this scan waits for the
+				// next interrupt, so that a handler cannot keep it here
+				if (timeout.time > currentTime || timeout.scan == scans) {
+					timeout = timeout.next;
+					continue;
+				}
+
+				Timeout next = timeout.next;
+
+				remove(timeout);
+				timeout.fire(currentTime);
+
+				// a handler can cancel any timeout in this slot, including
+				// next, so look at the slot again from the start
+				if (timeout.thread == null)
+					next = wheel[index];
+
+				timeout = next;
 			}
 		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -70,6 +190,10 @@ public class Alarm {
 	 * (current time) >= (WaitUntil called time)+(x)
 	 * </blockquote>
 	 *
+	 * <p>
+	 * The thread is woken up sooner if another thread passes it to
+	 * <tt>cancel()</tt>.
+	 *
 	 * @param	x	the minimum number of clock ticks to wait.
 	 *
 	 * @see	nachos.machine.Timer#getTime()
@@ -78,15 +202,175 @@ public class Alarm {
 		// Disable Interrupts
 		boolean intStatus = Machine.interrupt().disable();
 
-		long priortyTime = Machine.timer().getTime() + x;
-		KThread.currentThread().alarmPriority = priortyTime;
-		waitingQ.add(KThread.currentThread());
+		KThread thread = KThread.currentThread();
+		Timeout timeout = new Timeout(thread, null, 0);
+
+		sleepers.put(thread, timeout);
+		add(timeout, Machine.timer().getTime() + x);
+		rescheduleTimer();
 		KThread.sleep();
 
 		//Enable Interrupts
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Wake up a thread that is sleeping in <tt>waitUntil()</tt> before its
+	 * time is up.
+	 *
+	 * @param	thread	the thread to wake up.
+	 * @return	<tt>true</tt> if the thread was sleeping in
+	 *		<tt>waitUntil()</tt>.
+	 */
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = sleepers.get(thread);
+		if (timeout != null) {
+			remove(timeout);
+			timeout.fire(Machine.timer().getTime());
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return timeout != null;
+	}
+
+	/**
+	 * Arrange for <i>handler</i> to be run by the timer interrupt handler,
+	 * with interrupts disabled, during the first timer interrupt at least
+	 * <i>delay</i> ticks from now. If <i>period</i> is positive, it is run
+	 * again every <i>period</i> ticks after that, until cancelled. Periodic
+	 * runs that fall between two timer interrupts are merged into one.
+	 *
+	 * @param	handler	the handler to run.
+	 * @param	delay	the minimum number of ticks until the first run.
+	 * @param	period	the number of ticks between runs, or 0 to run only
+	 *			once.
+	 * @return	a <tt>Timeout</tt> that can be used to cancel the runs.
+	 */
+	public Timeout schedule(Runnable handler, long delay, long period) {
+		Lib.assertTrue(handler != null && period >= 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = new Timeout(null, handler, period);
+		add(timeout, Machine.timer().getTime() + delay);
+		rescheduleTimer();
+
+		Machine.interrupt().restore(intStatus);
+
+		return timeout;
+	}
+
+	/**
+	 * Put a wake-up in the slot for <i>time</i>. A time that has already
+	 * passed goes in the current slot, so the next interrupt sees it.
+	 */
+	private void add(Timeout timeout, long time) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long slot = Math.max(time / slotTicks, lastSlot);
+		int index = (int) (slot % wheelSize);
+
+		timeout.time = time;
+		timeout.slot = index;
+		timeout.scan = scans;
+		timeout.pending = true;
+
+		timeout.prev = null;
+		timeout.next = wheel[index];
+		if (wheel[index] != null)
+			wheel[index].prev = timeout;
+		wheel[index] = timeout;
+
+		occupied |= 1L << index;
+	}
+
+	private void remove(Timeout timeout) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			wheel[timeout.slot] = timeout.next;
+
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+
+		if (wheel[timeout.slot] == null)
+			occupied &= ~(1L << timeout.slot);
+
+		timeout.prev = timeout.next = null;
+		timeout.pending = false;
+	}
+
+	/**
+	 * A pending wake-up: either a thread sleeping in <tt>waitUntil()</tt>, or
+	 * a handler passed to <tt>schedule()</tt>.
+	 */
+	public class Timeout {
+		private Timeout(KThread thread, Runnable handler, long period) {
+			this.thread = thread;
+			this.handler = handler;
+			this.period = period;
+		}
+
+		/**
+		 * Cancel this wake-up, and any later runs if it is periodic.
+		 *
+		 * @return	<tt>true</tt> if it was still pending.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean wasPending = pending;
+			if (pending)
+				remove(this);
+
+			Machine.interrupt().restore(intStatus);
+
+			return wasPending;
+		}
+
+		/**
+		 * Test whether this wake-up has yet to fire or be cancelled. A
+		 * periodic wake-up stays pending until it is cancelled.
+		 */
+		public boolean isPending() {
+			return pending;
+		}
+
+		private void fire(long currentTime) {
+			if (thread != null) {
+				sleepers.remove(thread);
+				thread.ready();
+				return;
+			}
+
+			if (period > 0) {
+				long next = time + period;
+				if (next <= currentTime)
+					next = currentTime + period;
+
+				add(this, next);
+			}
+
+			handler.run();
+		}
+
+		private KThread thread;
+		private Runnable handler;
+		private long period;
+
+		private long time;
+		private int slot;
+		/** The value of <tt>scans</tt> when this was added. */
+		private long scan;
+		private boolean pending = false;
+		private Timeout prev, next;
+	}
+
 
 	public static void selfTest() {
 		System.out.println("***  Enter Alarm Self Test  ***");	
@@ -126,14 +410,21 @@ public class Alarm {
 		}
 		System.out.println("***  Leave Alarm Self Test  ***");	
 	}
-}
-
-class SortQueueViaPriority implements Comparator<KThread> {
-	// For Sorting the Priority Queue
-	public int compare(KThread thread1, KThread thread2) {
-		if (thread1.alarmPriority == thread2.alarmPriority) return 0;
-		return thread1.alarmPriority > thread2.alarmPriority ? 1 : -1;
-	}
 
+	/** The number of slots in the wheel, one per bit of <tt>occupied</tt>. */
+	private static final int wheelSize = 64;
+	/** The number of ticks each slot covers. */
+	private static final int slotTicks = Stats.TimerTicks / 4;
 
+	private Timeout[] wheel;
+	/** A bit for each slot, set if the slot holds any wake-ups. */
+	private long occupied = 0;
+	/** The slot containing the time of the last timer interrupt. */
+	private long lastSlot;
+	/** The number of times <tt>wakeWaiters()</tt> has scanned the wheel. */
+	private long scans = 0;
+	/** Whether every timer interrupt preempts the current thread. */
+	private boolean preemptAlways = false;
+	/** The wake-up of each thread sleeping in <tt>waitUntil()</tt>. */
+	private HashMap<KThread, Timeout> sleepers = new HashMap<KThread, Timeout>();
 }
@@ -2,6 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.Arrays;
+
 /**
  * A KThread is a thread that can be used to execute Nachos kernel code. Nachos
  * allows multiple threads to run concurrently.
@@ -31,9 +33,6 @@ public class KThread {
 	// Variable that will be used
 	private ThreadQueue joinQ = null; 
 
-	//Used for the Alarm Class Priority Queue
-	public long alarmPriority;
-
 
 	/**
 	 * Get the current thread.
@@ -323,8 +322,17 @@ public class KThread {
 	private static void createIdleThread() {
 		Lib.assertTrue(idleThread == null);
 
+		idleFastForward = Config.getBoolean("KThread.idleFastForward", false);
+
 		idleThread = new KThread(new Runnable() {
-			public void run() { while (true) yield(); }
+			public void run() {
+				while (true) {
+					if (idleFastForward)
+						idle();
+					else
+						KThread.yield();
+				}
+			}
 		});
 		idleThread.setName("idle");
 
@@ -333,6 +341,34 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Run by the idle thread in place of <tt>yield()</tt> when
+	 * <tt>KThread.idleFastForward</tt> is set. If no other thread is ready,
+	 * skip the simulated clock ahead to the next pending interrupt using
+	 * <tt>Interrupt.idle()</tt>, then dispatch the CPU to whichever thread is
+	 * ready as a result.
+	 */
+	private static void idle() {
+		Lib.assertTrue(currentThread == idleThread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread nextThread = readyQueue.nextThread();
+		if (nextThread == null) {
+			Machine.interrupt().idle();
+			nextThread = readyQueue.nextThread();
+		}
+
+		currentThread.ready();
+
+		if (nextThread == null)
+			nextThread = idleThread;
+
+		nextThread.run();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
@@ -394,6 +430,7 @@ public class KThread {
 		Lib.assertTrue(tcb == TCB.currentTCB());
 
 		Machine.autoGrader().runningThread(this);
+		ThreadedKernel.scheduler.runningThread(this);
 
 		status = statusRunning;
 
@@ -428,6 +465,47 @@ public class KThread {
 		private int which;
 	}
 
+	/**
+	 * Measure the host cost of a context switch by passing the CPU back and
+	 * forth between the current thread and a forked thread with
+	 * <tt>yield()</tt>. The measurement is repeated <i>trials</i> times,
+	 * and the fastest and median wall-clock times per switch are printed,
+	 * since a single run varies too much with the host scheduler to show a
+	 * change.
+	 *
+	 * @param	trials	the number of times to repeat the measurement.
+	 * @param	rounds	the number of times each thread yields per trial.
+	 */
+	public static void switchBenchmark(int trials, final int rounds) {
+		Lib.assertTrue(trials > 0 && rounds > 0);
+
+		long[] perSwitch = new long[trials];
+
+		for (int t=0; t<trials; t++) {
+			KThread partner = new KThread(new Runnable() {
+				public void run() {
+					for (int i=0; i<rounds; i++)
+						KThread.yield();
+				}
+			}).setName("switch benchmark");
+
+			long start = System.nanoTime();
+
+			partner.fork();
+			for (int i=0; i<rounds; i++)
+				KThread.yield();
+			partner.join();
+
+			perSwitch[t] = (System.nanoTime() - start) / (2*rounds);
+		}
+
+		Arrays.sort(perSwitch);
+
+		System.out.println("Context switch: " + trials + " trials of "
+				+ 2*rounds + " switches, fastest " + perSwitch[0]
+				+ " ns, median " + perSwitch[trials/2] + " ns per switch");
+	}
+
 	/**
 	 * Tests whether this module is working.
 	 */
@@ -525,4 +603,5 @@ public class KThread {
 	private static KThread currentThread = null;
 	private static KThread toBeDestroyed = null;
 	private static KThread idleThread = null;
-}
\ No newline at end of file
+	private static boolean idleFastForward;
+}
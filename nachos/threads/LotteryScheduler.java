@@ -1,12 +1,6 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import nachos.threads.PriorityScheduler.PriorityQueue;
-
-import java.awt.datatransfer.Transferable;
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -56,71 +50,197 @@ public class LotteryScheduler extends PriorityScheduler {
 		return new LotteryPriorityQueue(transferPriority);
 	}
 
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A lottery queue. The tickets of the waiting threads are kept in a
+	 * Fenwick tree indexed by slot, so a draw, and adding, removing or
+	 * changing the tickets of a thread, each take <i>O</i>(log <i>n</i>)
+	 * time. Ticket totals are kept as <tt>long</tt>s, so they cannot
+	 * overflow even when threads hold <tt>priorityMaximum</tt> tickets.
+	 */
 	protected class LotteryPriorityQueue extends PriorityQueue{
 
 		LotteryPriorityQueue(boolean transferPriority) {
 			super(transferPriority);
-			// TODO Auto-generated constructor stub
 		}
 		
+		protected boolean isEmpty() {
+			return size == 0;
+		}
+
+		protected void add(ThreadState state) {
+			LotteryState lotteryState = (LotteryState) state;
+
+			if (numFree == 0)
+				grow();
 
+			int slot = freeSlots[--numFree];
+			slots[slot] = lotteryState;
+			lotteryState.slot = slot;
+			lotteryState.queuedTickets = state.effectivePriority;
+			addTickets(slot, lotteryState.queuedTickets);
+			size++;
+		}
+
+		protected void remove(ThreadState state) {
+			LotteryState lotteryState = (LotteryState) state;
+			int slot = lotteryState.slot;
+
+			Lib.assertTrue(slots[slot] == lotteryState);
+
+			addTickets(slot, -lotteryState.queuedTickets);
+			slots[slot] = null;
+			freeSlots[numFree++] = slot;
+			size--;
+		}
+
+		protected void priorityChanged(ThreadState state) {
+			LotteryState lotteryState = (LotteryState) state;
+
+			addTickets(lotteryState.slot,
+				   state.effectivePriority - lotteryState.queuedTickets);
+			lotteryState.queuedTickets = state.effectivePriority;
+
+			donationChanged();
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads, using the seeded
+		 * <tt>Lib</tt> random number generator, and return the winner.
+		 */
 		protected KThread pickNextThread() {
-			int tickets[] = new int[250];
-			KThread threads[] = new KThread[250];
-			int count = 0;
-			int sum = 0;
-			for(Iterator<KThread> iter = waitQ.iterator(); iter.hasNext();count++){
-				KThread thread = iter.next();
-				tickets[count] = getThreadState(thread).getEffectivePriority();
-				sum += getThreadState(thread).getEffectivePriority();
-				threads[count] = thread;
-			}
-			int r = (int)(Math.random()*sum)+1;
-			for(int i=0; i < tickets.length; i++){
-				if(r <= tickets[i]){
-					return threads[i];
-				} else {
-					r -= tickets[i];
+			if (size == 0)
+				return null;
+
+			// nobody holds any tickets, so take any waiting thread
+			if (totalTickets == 0) {
+				for (int slot=1; ; slot++) {
+					if (slots[slot] != null)
+						return slots[slot].thread;
 				}
 			}
-			return null; // TO Fix error of not returning anything
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = Math.min((long) (Lib.random() * totalTickets),
+						  totalTickets - 1);
+
+			return slots[findTicket(ticket)].thread;
 		}
 
 		public int getEffectivePriority() {
 			if(transferPriority == false){
 				return priorityMinimum;
 			}
-			if(altered){
-				effectivePriority = priorityMinimum;
-				for(Iterator<KThread> iter = waitQ.iterator(); iter.hasNext();){
-					KThread thread = iter.next();
-					effectivePriority += getThreadState(thread).getEffectivePriority();
+			// tickets add, so an empty queue donates none
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		/**
+		 * Add <tt>tickets</tt> to the count for <tt>slot</tt>.
+		 */
+		private void addTickets(int slot, long tickets) {
+			for (int i=slot; i<slots.length; i+=i&-i)
+				tree[i] += tickets;
+
+			totalTickets += tickets;
+		}
+
+		/**
+		 * Return the slot holding ticket number <tt>ticket</tt>, counting
+		 * from zero through the slots in order.
+		 */
+		private int findTicket(long ticket) {
+			int slot = 0;
+
+			for (int step=Integer.highestOneBit(slots.length-1); step>0;
+			     step>>=1) {
+				if (slot+step < slots.length && tree[slot+step] <= ticket) {
+					slot += step;
+					ticket -= tree[slot];
 				}
-				altered = false;
 			}
-			return effectivePriority;
+
+			return slot+1;
+		}
+
+		/**
+		 * Double the number of slots, rebuilding the tree.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int newLength = Math.max((oldLength-1)*2, 8) + 1;
+
+			LotteryState[] oldSlots = slots;
+			slots = new LotteryState[newLength];
+			tree = new long[newLength];
+			freeSlots = new int[newLength];
+			totalTickets = 0;
+
+			for (int slot=1; slot<oldLength; slot++) {
+				slots[slot] = oldSlots[slot];
+				if (slots[slot] != null)
+					addTickets(slot, slots[slot].queuedTickets);
+			}
+
+			// hand out the lowest new slots first
+			numFree = 0;
+			for (int slot=newLength-1; slot>=oldLength; slot--)
+				freeSlots[numFree++] = slot;
 		}
 
+		/** The waiting thread in each slot. Slot 0 is never used. */
+		private LotteryState[] slots = new LotteryState[1];
+		/** A Fenwick tree over the tickets of each slot. */
+		private long[] tree = new long[1];
+		/** A stack of the empty slots. */
+		private int[] freeSlots = new int[1];
+		private int numFree = 0;
+		private int size = 0;
+		private long totalTickets = 0;
 	}
 
 	protected class LotteryState extends ThreadState{
 
 		public LotteryState(KThread thread) {
 			super(thread);
-			// TODO Auto-generated constructor stub
 		}
-		
-		public int getEffectivePriority() {
-			// TODO: Update this method
-			int effectivePriority = this.priority;
-			if(altered){
-				for(Iterator<ThreadQueue> iter = resources.iterator(); iter.hasNext();){
-					LotteryPriorityQueue priorityQ = (LotteryPriorityQueue) (iter.next());
-					effectivePriority += priorityQ.getEffectivePriority();
-				}
-			}
-			return effectivePriority;
+
+		/**
+		 * A thread holds its own tickets plus every ticket donated to it, up
+		 * to <tt>priorityMaximum</tt>.
+		 */
+		protected int computeEffectivePriority() {
+			return (int) Math.min(this.priority + donatedTickets,
+					      priorityMaximum);
+		}
+
+		protected void addDonation(int tickets) {
+			donatedTickets += tickets;
+		}
+
+		protected void removeDonation(int tickets) {
+			donatedTickets -= tickets;
 		}
 
+		/** The total donated by the queues this thread owns. */
+		private long donatedTickets = 0;
+		/** The slot of waitingQ this thread is in, and its tickets there. */
+		private int slot;
+		private long queuedTickets;
 	}
 }
@@ -0,0 +1,322 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of <tt>numLevels</tt> levels, and a thread at a
+ * lower-numbered level is always dequeued before a thread at a higher one.
+ * Within a level, threads are dequeued in FIFO order. Each level has a
+ * quantum, doubling from one level to the next.
+ *
+ * <p>
+ * The scheduler charges each thread for the ticks it spends on the CPU, using
+ * the simulated clock. Once a thread has used up the quantum for its level,
+ * whether in one stretch or several, it moves down one level and the timer
+ * interrupt preempts it.
+ *
+ * <p>
+ * A thread that blocked and is woken up by an interrupt handler, as when
+ * waiting for the console or sleeping on the alarm, moves up one level, and
+ * preempts the running thread at the next timer interrupt if that leaves it
+ * at a higher level. Threads made ready by other threads, whether just
+ * forked or handed a lock, a semaphore or a condition, keep their level.
+ * Every <tt>boostInterval</tt> ticks, all threads go back to the top level,
+ * so that CPU-bound threads cannot be starved forever.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 */
+	public MLFQScheduler() {
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param	transferPriority	ignored. MLFQ schedulers do not
+	 *					transfer priority.
+	 * @return	a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Return the level of the specified thread. Level 0 is the highest.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getThreadState(thread).level;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	/**
+	 * Charge the thread that was running for the time since it was given the
+	 * CPU, and start timing the new one.
+	 */
+	public void runningThread(KThread thread) {
+		long time = Machine.timer().getTime();
+
+		if (chargedThread != null)
+			getThreadState(chargedThread).charge(time - chargedSince);
+
+		chargedThread = thread;
+		chargedSince = time;
+
+		// the new thread's quantum may end before the timer is next due
+		if (ThreadedKernel.alarm != null)
+			ThreadedKernel.alarm.rescheduleTimer();
+	}
+
+	/**
+	 * Charge the current thread for the time since it was last charged, and
+	 * preempt it if that used up its quantum or if a thread at a higher level
+	 * has been woken up since. Also boost every thread back to the top level
+	 * once per <tt>boostInterval</tt>.
+	 */
+	public boolean timerInterrupt() {
+		long time = Machine.timer().getTime();
+
+		if (time - lastBoost >= boostInterval) {
+			numBoosts++;
+			lastBoost = time;
+		}
+
+		if (chargedThread == null)
+			return false;
+
+		boolean expired =
+			getThreadState(chargedThread).charge(time - chargedSince);
+		chargedSince = time;
+
+		boolean preempt = expired || higherLevelWoken;
+		higherLevelWoken = false;
+
+		return preempt;
+	}
+
+	/**
+	 * Return the time the current thread's quantum runs out, or now if a
+	 * thread at a higher level is waiting, or the time of the next boost if
+	 * that is sooner.
+	 */
+	public long preemptionTime() {
+		long time = lastBoost + boostInterval;
+
+		if (chargedThread == null)
+			return time;
+
+		if (higherLevelWoken)
+			return Machine.timer().getTime();
+
+		ThreadState state = getThreadState(chargedThread);
+		return Math.min(time,
+				chargedSince + quantum(state.level) - state.used);
+	}
+
+	/**
+	 * The number of levels.
+	 */
+	public static final int numLevels = 3;
+	/**
+	 * The quantum at level 0, in ticks. Each lower level's quantum is twice
+	 * that of the level above.
+	 */
+	public static final int baseQuantum = Stats.TimerTicks;
+	/**
+	 * The number of ticks between boosts of every thread to level 0.
+	 */
+	public static final int boostInterval = 50 * Stats.TimerTicks;
+
+	/**
+	 * Return the quantum at the specified level.
+	 */
+	public static long quantum(int level) {
+		return (long) baseQuantum << level;
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		ThreadState state = (ThreadState) thread.schedulingState;
+		state.catchUp();
+
+		return state;
+	}
+
+	/**
+	 * A queue with a FIFO list for each level.
+	 */
+	protected class MLFQQueue extends ThreadQueue {
+		MLFQQueue() {
+			levels = new ArrayList<LinkedList<KThread>>(numLevels);
+			for (int i=0; i<numLevels; i++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the list for its level. If an interrupt handler is
+		 * adding it, the thread was blocked waiting for a device or the
+		 * alarm, so it moves up a level first.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+
+			if (thread != KThread.currentThread() &&
+			    Machine.interrupt().inHandler()) {
+				state.promote();
+
+				if (chargedThread != null &&
+				    state.level < getThreadState(chargedThread).level &&
+				    !higherLevelWoken) {
+					higherLevelWoken = true;
+
+					if (ThreadedKernel.alarm != null)
+						ThreadedKernel.alarm.rescheduleTimer();
+				}
+			}
+
+			catchUp();
+			levels.get(state.level).add(thread);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(isEmpty());
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			catchUp();
+
+			for (int i=0; i<numLevels; i++) {
+				if (!levels.get(i).isEmpty())
+					return levels.get(i).removeFirst();
+			}
+
+			return null;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i=0; i<numLevels; i++)
+				System.out.print(" " + i + ":" + levels.get(i));
+		}
+
+		private boolean isEmpty() {
+			for (int i=0; i<numLevels; i++) {
+				if (!levels.get(i).isEmpty())
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * If there has been a boost since this queue was last used, move
+		 * every waiting thread up to level 0, in level order.
+		 */
+		private void catchUp() {
+			if (boostsSeen == numBoosts)
+				return;
+
+			boostsSeen = numBoosts;
+
+			for (int i=1; i<numLevels; i++) {
+				levels.get(0).addAll(levels.get(i));
+				levels.get(i).clear();
+			}
+		}
+
+		private ArrayList<LinkedList<KThread>> levels;
+		private long boostsSeen = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level and how much of that
+	 * level's quantum it has used.
+	 */
+	protected class ThreadState {
+		/**
+		 * Add <tt>ticks</tt> to the CPU time used at this level. If that uses
+		 * up the quantum, move down a level.
+		 *
+		 * @return	<tt>true</tt> if the quantum was used up.
+		 */
+		boolean charge(long ticks) {
+			used += ticks;
+
+			if (used < quantum(level))
+				return false;
+
+			if (level < numLevels-1)
+				level++;
+			used = 0;
+
+			return true;
+		}
+
+		/**
+		 * Move up a level, with a fresh quantum.
+		 */
+		void promote() {
+			if (level > 0)
+				level--;
+			used = 0;
+		}
+
+		/**
+		 * If there has been a boost since this thread was last looked at,
+		 * move it to level 0.
+		 */
+		void catchUp() {
+			if (boostsSeen == numBoosts)
+				return;
+
+			boostsSeen = numBoosts;
+			level = 0;
+			used = 0;
+		}
+
+		/** The level of the associated thread. */
+		protected int level = 0;
+		/** The ticks used at this level since the last change of level. */
+		protected long used = 0;
+
+		private long boostsSeen = numBoosts;
+	}
+
+	private KThread chargedThread = null;
+	private long chargedSince = 0;
+
+	/** Set when a thread above the running thread's level is woken. */
+	private boolean higherLevelWoken = false;
+
+	private long numBoosts = 0;
+	private long lastBoost = 0;
+}
@@ -167,12 +167,17 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 *
+	 * <p>
+	 * Waiting threads are kept in one FIFO bucket per priority level, filed
+	 * under their effective priority, and a bitmap records which buckets are
+	 * non-empty, so finding and removing the next thread take constant time.
+	 * When the effective priority of a waiting thread changes, it is moved to
+	 * the back of the bucket for its new priority, also in constant time, as
+	 * if it had just started waiting at that priority.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		protected ThreadState owner = null;
-		protected LinkedList<KThread> waitQ = new LinkedList<KThread>();
-		protected boolean altered;
-		protected int effectivePriority;
 
 		PriorityQueue(boolean transferPriority) {
 			this.transferPriority = transferPriority;
@@ -187,7 +192,7 @@ public class PriorityScheduler extends Scheduler {
 			Lib.assertTrue(Machine.interrupt().disabled());
 			ThreadState state = getThreadState(thread);
 			if(this.owner != null && this.transferPriority){
-				this.owner.resources.remove(this);
+				this.owner.release(this);
 			}
 			this.owner = state;
 			state.acquire(this);
@@ -195,18 +200,21 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			if(waitQ.isEmpty()){
+			if(isEmpty()){
 				return null;
 			}
 
 			if(this.owner != null && this.transferPriority){
-				this.owner.resources.remove(this);
+				ThreadState previous = this.owner;
+				this.owner = null;
+				previous.release(this);
 			}
 
 			KThread firstThread = pickNextThread();
 			if(firstThread != null){
-				waitQ.remove(firstThread);
-				getThreadState(firstThread).acquire(this);
+				ThreadState state = getThreadState(firstThread);
+				this.owner = state;
+				state.acquire(this);
 			}
 
 			return firstThread;
@@ -220,45 +228,108 @@ public class PriorityScheduler extends Scheduler {
 		 *		return.
 		 */
 		protected KThread pickNextThread() {
-			KThread nextThread = null;
-			for(Iterator<KThread> iter = waitQ.iterator(); iter.hasNext();){
-				KThread thread = iter.next();
-				int priority = getThreadState(thread).getEffectivePriority();
-				if(nextThread == null || priority > getThreadState(nextThread).getEffectivePriority())
-				{
-					nextThread = thread;
-				}
+			if(isEmpty()){
+				return null;
 			}
-			return nextThread;
+			return heads[highestLevel()].thread;
 		}
 
+		/**
+		 * Return the priority this queue donates to its owner: the highest
+		 * effective priority of any waiting thread.
+		 */
 		public int getEffectivePriority(){
-
-			if(!transferPriority){
+			if(!transferPriority || isEmpty()){
 				return priorityMinimum;
 			}
-			if(altered){
-				effectivePriority = priorityMinimum;
-				for(Iterator<KThread> iter = waitQ.iterator(); iter.hasNext();){
-					KThread thread = iter.next();
-					int priority = getThreadState(thread).getEffectivePriority();
-					if(priority > effectivePriority){
-						effectivePriority = priority;
-					}
-				}
-				altered = false;
+			return highestLevel();
+		}
+
+		/**
+		 * Return <tt>true</tt> if no thread is waiting on this queue.
+		 */
+		protected boolean isEmpty() {
+			return occupied == 0;
+		}
+
+		/**
+		 * Add a waiting thread to the back of the bucket for its effective
+		 * priority.
+		 */
+		protected void add(ThreadState state) {
+			int level = state.effectivePriority;
+			state.queuedPriority = level;
+
+			state.queuePrev = tails[level];
+			state.queueNext = null;
+			if(tails[level] == null){
+				heads[level] = state;
+			}else{
+				tails[level].queueNext = state;
 			}
-			return effectivePriority;
+			tails[level] = state;
+
+			occupied |= 1 << level;
 		}
 
-		public void setAltered(){
-			if(!transferPriority){
+		/**
+		 * Remove a waiting thread from its bucket.
+		 */
+		protected void remove(ThreadState state) {
+			int level = state.queuedPriority;
+
+			if(state.queuePrev == null){
+				heads[level] = state.queueNext;
+			}else{
+				state.queuePrev.queueNext = state.queueNext;
+			}
+			if(state.queueNext == null){
+				tails[level] = state.queuePrev;
+			}else{
+				state.queueNext.queuePrev = state.queuePrev;
+			}
+			state.queuePrev = state.queueNext = null;
+
+			if(heads[level] == null){
+				occupied &= ~(1 << level);
+			}
+		}
+
+		/**
+		 * Called when the effective priority of a thread waiting on this
+		 * queue has changed. Moves the thread to the back of its new bucket
+		 * and passes the change on to the owner.
+		 */
+		protected void priorityChanged(ThreadState state) {
+			remove(state);
+			add(state);
+			donationChanged();
+		}
+
+		/**
+		 * Called when the set of waiting threads or their priorities has
+		 * changed. If that changes what this queue donates, move the owner's
+		 * count of this queue's donation to the new value, so the owner can
+		 * update its effective priority without looking at its other queues.
+		 */
+		protected void donationChanged() {
+			if(!transferPriority || owner == null){
 				return;
 			}
-			altered = true;
-			if(owner != null){
-				owner.setAltered();
+
+			int donation = getEffectivePriority();
+			if(donation == this.donation){
+				return;
 			}
+
+			owner.removeDonation(this.donation);
+			this.donation = donation;
+			owner.addDonation(donation);
+			owner.updateEffectivePriority();
+		}
+
+		private int highestLevel() {
+			return 31 - Integer.numberOfLeadingZeros(occupied);
 		}
 
 		public void print() {
@@ -271,6 +342,24 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/**
+		 * The priority this queue is counted as donating to its owner. Only
+		 * valid while the queue has an owner and transfers priority.
+		 */
+		protected int donation;
+
+		/**
+		 * The number of times a thread has started waiting on this queue.
+		 * Lets a subclass keep threads of the same priority in FIFO order.
+		 */
+		protected long waitCount = 0;
+
+		/** The first and last waiting thread at each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum+1];
+		private ThreadState[] tails = new ThreadState[priorityMaximum+1];
+		/** Bit <i>p</i> is set if some waiting thread has priority <i>p</i>. */
+		private int occupied = 0;
 	}
 
 	/**
@@ -283,8 +372,7 @@ public class PriorityScheduler extends Scheduler {
 	protected class ThreadState {
 		protected int effectivePriority;
 		protected LinkedList<ThreadQueue> resources = new LinkedList<ThreadQueue>();
-		protected boolean altered = false;
-		protected ThreadQueue waitingQ;
+		protected PriorityQueue waitingQ;
 
 		/**
 		 * Allocate a new <tt>ThreadState</tt> object and associate it with the
@@ -312,16 +400,6 @@ public class PriorityScheduler extends Scheduler {
 		 * @return	the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			int effectivePriority = this.priority;
-			if(altered){
-				for(Iterator<ThreadQueue> iter = resources.iterator(); iter.hasNext();){
-					PriorityQueue priorityQ = (PriorityQueue) (iter.next());
-					int priority = priorityQ.getEffectivePriority();
-					if(effectivePriority < priority){
-						effectivePriority = priority;
-					}
-				}
-			}
 			return effectivePriority;
 		}
 
@@ -336,17 +414,72 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			setAltered();
+			updateEffectivePriority();
 		}
 
-		public void setAltered(){
-			if(altered){
+		/**
+		 * Recompute the effective priority of the associated thread from its
+		 * own priority and the donations of the queues it owns. If it has
+		 * changed, refile the thread in the queue it is waiting on, which
+		 * passes the change on to the owner of that queue, and so on down
+		 * the chain until some thread's effective priority stays the same.
+		 *
+		 * <p>
+		 * If the chain leads back to this thread (a deadlock), the change
+		 * stops here rather than going around the cycle again.
+		 */
+		protected void updateEffectivePriority(){
+			int effectivePriority = computeEffectivePriority();
+
+			if(effectivePriority == this.effectivePriority){
 				return;
 			}
-			altered = true;
-			PriorityQueue priorityQ = (PriorityQueue) waitingQ;
-			if(priorityQ != null){
-				priorityQ.setAltered();
+			this.effectivePriority = effectivePriority;
+
+			if(waitingQ == null){
+				return;
+			}
+
+			if(propagating){
+				// the chain has led back here, so only refile this thread
+				waitingQ.remove(this);
+				waitingQ.add(this);
+				return;
+			}
+
+			propagating = true;
+			waitingQ.priorityChanged(this);
+			propagating = false;
+		}
+
+		/**
+		 * Return the effective priority implied by the associated thread's
+		 * priority and the donations currently counted.
+		 */
+		protected int computeEffectivePriority(){
+			if(donated == 0){
+				return priority;
+			}
+			return Math.max(priority, 31 - Integer.numberOfLeadingZeros(donated));
+		}
+
+		/**
+		 * Count a donation of <tt>priority</tt> from a queue this thread
+		 * owns. The caller must then call <tt>updateEffectivePriority()</tt>.
+		 */
+		protected void addDonation(int priority){
+			if(donations[priority]++ == 0){
+				donated |= 1 << priority;
+			}
+		}
+
+		/**
+		 * Stop counting a donation of <tt>priority</tt>. The caller must then
+		 * call <tt>updateEffectivePriority()</tt>.
+		 */
+		protected void removeDonation(int priority){
+			if(--donations[priority] == 0){
+				donated &= ~(1 << priority);
 			}
 		}
 		
@@ -355,7 +488,7 @@ public class PriorityScheduler extends Scheduler {
 				return;
 			}else{
 				this.priority--;
-				setAltered();
+				updateEffectivePriority();
 			}
 			
 		}
@@ -365,7 +498,7 @@ public class PriorityScheduler extends Scheduler {
 				return;
 			}else{
 				this.priority++;
-				setAltered();
+				updateEffectivePriority();
 			}
 		}
 
@@ -383,15 +516,17 @@ public class PriorityScheduler extends Scheduler {
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			Lib.assertTrue(waitQueue.waitQ.indexOf(thread) == -1);
+			Lib.assertTrue(waitingQ == null);
 
-			waitQueue.waitQ.add(thread);
-			waitQueue.setAltered();
-			waitingQ = waitQueue;
-			if (resources.indexOf(waitQueue) != -1) {
-				resources.remove(waitQueue);
+			if (waitQueue.owner == this) {
 				waitQueue.owner = null;
+				release(waitQueue);
 			}
+
+			waitingQ = waitQueue;
+			waitSequence = waitQueue.waitCount++;
+			waitQueue.add(this);
+			waitQueue.donationChanged();
 		}
 
 		/**
@@ -407,16 +542,49 @@ public class PriorityScheduler extends Scheduler {
 		public void acquire(PriorityQueue waitQueue) {
 			Lib.assertTrue(Machine.interrupt().disabled());
 
-			resources.add(waitQueue);
 			if (waitQueue == waitingQ) {
+				waitQueue.remove(this);
 				waitingQ = null;
 			}
-			setAltered();
-		}	
+
+			// only queues that transfer priority can donate any
+			if (waitQueue.transferPriority) {
+				resources.add(waitQueue);
+				waitQueue.donation = waitQueue.getEffectivePriority();
+				addDonation(waitQueue.donation);
+				updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Called when the associated thread no longer owns
+		 * <tt>waitQueue</tt>, so it loses whatever that queue donated.
+		 */
+		protected void release(PriorityQueue waitQueue) {
+			if (resources.remove(waitQueue)) {
+				removeDonation(waitQueue.donation);
+				updateEffectivePriority();
+			}
+		}
 
 		/** The thread with which this object is associated. */	   
 		protected KThread thread;
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The order in which this thread started waiting on waitingQ. */
+		protected long waitSequence;
+		/** The bucket of waitingQ this thread is filed in, and its links. */
+		protected int queuedPriority;
+		protected ThreadState queuePrev, queueNext;
+
+		/**
+		 * The number of owned queues donating each priority, and a bitmap of
+		 * the priorities with a non-zero count.
+		 */
+		private int[] donations = new int[priorityMaximum+1];
+		private int donated = 0;
+		/** Set while this thread is passing a change down the chain. */
+		private boolean propagating = false;
 	}
 }
@@ -154,4 +154,47 @@ public abstract class Scheduler {
 	public boolean decreasePriority() {
 		return false;
 	}
+
+	/**
+	 * Called by <tt>KThread.restoreState()</tt> each time a thread is given
+	 * the CPU, so that the scheduler can account for CPU time. By default,
+	 * does nothing.
+	 *
+	 * @param	thread	the thread that is now running.
+	 */
+	public void runningThread(KThread thread) {
+	}
+
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled.
+	 * Returns <tt>true</tt> if the current thread should be preempted, in
+	 * which case the alarm makes it yield. By default, never preempts.
+	 *
+	 * @return	<tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		return false;
+	}
+
+	/**
+	 * Return the time at which the scheduler next needs a timer interrupt
+	 * to preempt the current thread, or <tt>Long.MAX_VALUE</tt> if it never
+	 * does. Only used when the timer is tickless. By default, never
+	 * preempts.
+	 *
+	 * <p>
+	 * The alarm only asks for this time after a timer interrupt, a
+	 * <tt>waitUntil()</tt> or a <tt>schedule()</tt>. A scheduler that
+	 * overrides this must itself call the alarm's
+	 * <tt>rescheduleTimer()</tt> whenever the time moves earlier, such as
+	 * when a new thread starts running or a thread that should preempt it
+	 * is woken; otherwise the preemption is late by up to however long
+	 * the timer was last programmed for. Of the schedulers here, only
+	 * <tt>MLFQScheduler</tt> preempts, and it does so.
+	 *
+	 * @return	the time of the next preemption.
+	 */
+	public long preemptionTime() {
+		return Long.MAX_VALUE;
+	}
 }
@@ -0,0 +1,237 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread access in proportion to its
+ * tickets. Instead of holding a random lottery, it gives each thread a
+ * <i>stride</i> inversely proportional to its tickets and a <i>pass</i> value.
+ * The next thread to be dequeued is always the one with the lowest pass, and
+ * running a thread advances its pass by its stride. The result is the same
+ * proportional share a lottery gives, but deterministic and with bounded
+ * error.
+ *
+ * <p>
+ * Only the ready queue charges for access: a thread's pass advances each
+ * time it is given the CPU, not when it is handed a lock or woken from a
+ * semaphore or join. Every queue orders its threads by pass, though, so
+ * the thread furthest behind on the CPU gets the lock first.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins exactly as in the
+ * lottery scheduler: they add, as opposed to just taking the maximum.
+ */
+public class StrideScheduler extends LotteryScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param	transferPriority	<tt>true</tt> if this queue should
+	 *					transfer tickets from waiting threads
+	 *					to the owning thread.
+	 * @return	a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param	thread	the thread whose scheduling state to return.
+	 * @return	the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * Charge the thread just given the CPU one stride, and remember its pass
+	 * as the global pass.
+	 */
+	public void runningThread(KThread thread) {
+		StrideState state = (StrideState) getThreadState(thread);
+
+		globalPass = Math.max(globalPass, state.pass);
+		state.pass += state.getStride();
+	}
+
+	/**
+	 * The stride of a thread holding a single ticket. Large enough that the
+	 * strides of threads with many tickets still differ.
+	 */
+	public static final long stride1 = 1L << 32;
+
+	/** The pass of the thread most recently given the CPU. */
+	private long globalPass = 0;
+
+	/**
+	 * A stride queue. The waiting threads are kept in a binary heap ordered
+	 * by pass, ties going to the thread that has been waiting longest.
+	 */
+	protected class StrideQueue extends PriorityQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		protected boolean isEmpty() {
+			return size == 0;
+		}
+
+		protected void add(ThreadState state) {
+			StrideState strideState = (StrideState) state;
+
+			// a thread that has been off the CPU must not make up for lost
+			// time
+			if (strideState.pass < globalPass)
+				strideState.pass = globalPass;
+
+			if (size == heap.length) {
+				StrideState[] newHeap = new StrideState[size*2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			heap[size] = strideState;
+			strideState.heapIndex = size;
+			size++;
+			siftUp(size-1);
+
+			strideState.queuedTickets = state.effectivePriority;
+			totalTickets += strideState.queuedTickets;
+		}
+
+		protected void remove(ThreadState state) {
+			StrideState strideState = (StrideState) state;
+			int index = strideState.heapIndex;
+
+			Lib.assertTrue(heap[index] == strideState);
+
+			size--;
+			StrideState last = heap[size];
+			heap[size] = null;
+
+			if (index != size) {
+				heap[index] = last;
+				last.heapIndex = index;
+				siftDown(index);
+				siftUp(last.heapIndex);
+			}
+
+			totalTickets -= strideState.queuedTickets;
+		}
+
+		protected void priorityChanged(ThreadState state) {
+			StrideState strideState = (StrideState) state;
+
+			// the pass does not depend on tickets, so the heap is still in
+			// order; only the stride taken after the next dequeue changes
+			totalTickets += state.effectivePriority - strideState.queuedTickets;
+			strideState.queuedTickets = state.effectivePriority;
+
+			donationChanged();
+		}
+
+		protected KThread pickNextThread() {
+			if (size == 0)
+				return null;
+
+			return heap[0].thread;
+		}
+
+		public int getEffectivePriority() {
+			if (transferPriority == false)
+				return priorityMinimum;
+
+			return (int) Math.min(totalTickets, priorityMaximum);
+		}
+
+		private boolean before(StrideState a, StrideState b) {
+			if (a.pass != b.pass)
+				return a.pass < b.pass;
+
+			return a.waitSequence < b.waitSequence;
+		}
+
+		private void siftUp(int index) {
+			StrideState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index-1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			StrideState state = heap[index];
+
+			while (true) {
+				int child = 2*index + 1;
+				if (child >= size)
+					break;
+
+				if (child+1 < size && before(heap[child+1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private StrideState[] heap = new StrideState[8];
+		private int size = 0;
+		private long totalTickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under stride scheduling: its
+	 * tickets, as in the lottery scheduler, plus its pass.
+	 */
+	protected class StrideState extends LotteryState {
+		public StrideState(KThread thread) {
+			super(thread);
+		}
+
+		/**
+		 * Return how far this thread's pass advances each time it is
+		 * dequeued.
+		 */
+		public long getStride() {
+			return stride1 / Math.max(effectivePriority, 1);
+		}
+
+		/** The virtual time at which this thread is next due the CPU. */
+		protected long pass = 0;
+		/** The index of this thread in its queue's heap. */
+		private int heapIndex;
+		/** The tickets this thread is counted with in its queue. */
+		private long queuedTickets;
+	}
+}
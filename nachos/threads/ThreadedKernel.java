@@ -53,6 +53,9 @@ public class ThreadedKernel extends Kernel {
 //		if (Machine.bank() != null) {
 //			ElevatorBank.selfTest();
 //		}
+
+		if (Config.getBoolean("ThreadedKernel.switchBenchmark", false))
+			KThread.switchBenchmark(9, 20000);
 	}
 
 	/**
@@ -84,4 +87,6 @@ public class ThreadedKernel extends Kernel {
 	private static Communicator dummy5 = null;
 	private static Rider dummy6 = null;
 	private static ElevatorController dummy7 = null;
+	private static StrideScheduler dummy8 = null;
+	private static MLFQScheduler dummy9 = null;
 }
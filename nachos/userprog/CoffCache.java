@@ -0,0 +1,302 @@
+package nachos.userprog;
+
+import java.io.EOFException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * A cache of parsed executables, so that running a program again does not
+ * have to open the file, parse its headers, or read its sections.
+ *
+ * <p>
+ * The first time a program is run, it is loaded through <tt>Coff</tt> as
+ * usual, and each section page is kept once it has been loaded into physical
+ * memory. Later runs load those pages straight from the kept copies. The
+ * cache holds up to <tt>maxPages</tt> section pages, and evicts the least
+ * recently run executable to make room. A file written or removed by a user
+ * process is dropped from the cache.
+ *
+ * <p>
+ * Each process that gets an executable from <tt>open()</tt> must
+ * <tt>close()</tt> it once it will load no more pages from it. The file stays
+ * open while any process is using the executable, or while it is cached and
+ * some of its pages have not been kept yet. Since the file system may limit
+ * the number of open files, at most <tt>maxOpenFiles</tt> cached executables
+ * keep their files open; the least recently run of them is evicted to stay
+ * within the limit.
+ */
+public class CoffCache {
+	/**
+	 * Allocate a new executable cache.
+	 *
+	 * @param	maxPages	the number of section pages the cache may
+	 *				hold, or 0 to cache nothing.
+	 * @param	maxOpenFiles	the number of cached executables that may
+	 *				keep their files open.
+	 */
+	public CoffCache(int maxPages, int maxOpenFiles) {
+		Lib.assertTrue(maxPages >= 0 && maxOpenFiles >= 0);
+
+		this.maxPages = maxPages;
+		this.maxOpenFiles = maxOpenFiles;
+	}
+
+	/**
+	 * Return the executable with the specified name, from the cache if it is
+	 * there, and otherwise by opening and parsing the file.
+	 *
+	 * @param	name	the name of the file containing the executable.
+	 * @return	the executable, or <tt>null</tt> if the file could not be
+	 *		opened or is not a valid executable.
+	 */
+	public Executable open(String name) {
+		lock.acquire();
+		Executable executable = executables.get(name);
+		if (executable != null)
+			executable.users++;
+		lock.release();
+
+		if (executable != null)
+			return executable;
+
+		OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+		if (file == null) {
+			Lib.debug(dbgProcess, "\topen failed");
+			return null;
+		}
+
+		Coff coff;
+		try {
+			coff = new Coff(file);
+		}
+		catch (EOFException e) {
+			file.close();
+			Lib.debug(dbgProcess, "\tcoff load failed");
+			return null;
+		}
+
+		executable = new Executable(coff);
+
+		if (executable.numPages > maxPages)
+			return executable;
+
+		lock.acquire();
+
+		// another process may have cached it while this one was reading
+		Executable cached = executables.get(name);
+		if (cached != null) {
+			cached.users++;
+			lock.release();
+			coff.close();
+			return cached;
+		}
+
+		executable.cached = true;
+		executables.put(name, executable);
+		numPages += executable.numPages;
+		numOpenFiles++;
+
+		Iterator<Executable> i = executables.values().iterator();
+		while (numPages > maxPages || numOpenFiles > maxOpenFiles) {
+			Executable eldest = i.next();
+			if (numPages > maxPages || eldest.fileOpen) {
+				i.remove();
+				numPages -= eldest.numPages;
+				eldest.evict();
+			}
+		}
+
+		lock.release();
+
+		return executable;
+	}
+
+	/**
+	 * Drop the executable with the specified name from the cache, because
+	 * the file has changed. Processes already running it are not affected.
+	 *
+	 * @param	name	the name of the file.
+	 */
+	public void invalidate(String name) {
+		lock.acquire();
+
+		Executable executable = executables.remove(name);
+		if (executable != null) {
+			numPages -= executable.numPages;
+			executable.evict();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * An executable that may be in the cache. Its sections keep a copy of
+	 * each page the first time it is loaded, as long as the executable is
+	 * cached.
+	 */
+	public class Executable extends Coff {
+		private Executable(Coff coff) {
+			this.coff = coff;
+
+			entryPoint = coff.getEntryPoint();
+			sections = new CoffSection[coff.getNumSections()];
+
+			for (int s=0; s<sections.length; s++) {
+				sections[s] = new Section(coff.getSection(s));
+				numPages += sections[s].getLength();
+			}
+		}
+
+		public int getEntryPoint() {
+			return entryPoint;
+		}
+
+		/**
+		 * Stop using this executable. Closes the file once no process is
+		 * using it and it is not cached.
+		 */
+		public void close() {
+			lock.acquire();
+
+			Lib.assertTrue(users > 0);
+			users--;
+			closeIfUnused();
+
+			lock.release();
+		}
+
+		/**
+		 * Drop the executable from the cache, along with its kept pages
+		 * unless the file is already closed and they are all that is left to
+		 * load from. Called with the cache's lock held.
+		 */
+		private void evict() {
+			cached = false;
+
+			if (fileOpen) {
+				numOpenFiles--;
+
+				for (int s=0; s<sections.length; s++)
+					((Section) sections[s]).images = null;
+			}
+
+			closeIfUnused();
+		}
+
+		/**
+		 * Note that a page is about to be read from the file, so that the
+		 * file is not closed under the read.
+		 */
+		private void startLoad() {
+			lock.acquire();
+			numLoading++;
+			lock.release();
+		}
+
+		/**
+		 * Note that a page has been read from the file, and keep a copy of
+		 * it unless another process reading the same page at the same time
+		 * kept one first. Closes the file once every page has been kept and
+		 * no reads are in progress.
+		 *
+		 * @param	images	the kept pages of the section, or
+		 *			<tt>null</tt>.
+		 * @param	spn	the page within the section.
+		 * @param	image	the copy of the page, or <tt>null</tt>.
+		 */
+		private void finishLoad(byte[][] images, int spn, byte[] image) {
+			lock.acquire();
+
+			numLoading--;
+
+			if (cached && image != null && images[spn] == null) {
+				images[spn] = image;
+				numKept++;
+			}
+
+			if (cached && fileOpen && numKept == numPages && numLoading == 0) {
+				numOpenFiles--;
+				fileOpen = false;
+				coff.close();
+			}
+
+			lock.release();
+		}
+
+		private void closeIfUnused() {
+			if (users == 0 && !cached && fileOpen) {
+				fileOpen = false;
+				coff.close();
+			}
+		}
+
+		private Coff coff;
+		private int numPages = 0;
+		/** The number of section pages kept so far. */
+		private int numKept = 0;
+		/** The number of pages being read from the file. */
+		private int numLoading = 0;
+		private boolean cached = false;
+		private boolean fileOpen = true;
+		/** The number of processes that have opened and not closed this. */
+		private int users = 1;
+
+		private class Section extends CoffSection {
+			Section(CoffSection section) {
+				super(Executable.this, section.getName(), false,
+				      section.isReadOnly(), section.getLength(),
+				      section.getFirstVPN());
+
+				this.section = section;
+				images = new byte[section.getLength()][];
+			}
+
+			public void loadPage(int spn, int ppn) {
+				Lib.assertTrue(spn>=0 && spn<numPages);
+				Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+				byte[] memory = Machine.processor().getMemory();
+				int paddr = ppn*pageSize;
+
+				byte[][] images = this.images;
+				byte[] image = (images != null) ? images[spn] : null;
+
+				if (image != null) {
+					System.arraycopy(image, 0, memory, paddr, pageSize);
+					Machine.processor().invalidateDecodedPage(ppn);
+					return;
+				}
+
+				startLoad();
+				section.loadPage(spn, ppn);
+
+				if (cached && images != null) {
+					image = new byte[pageSize];
+					System.arraycopy(memory, paddr, image, 0, pageSize);
+				}
+
+				finishLoad(images, spn, image);
+			}
+
+			private CoffSection section;
+			private byte[][] images;
+		}
+	}
+
+	private int maxPages;
+	private int numPages = 0;
+	private int maxOpenFiles;
+	/** The number of cached executables whose files are open. */
+	private int numOpenFiles = 0;
+
+	/** The cached executables, least recently run first. */
+	private LinkedHashMap<String, Executable> executables =
+		new LinkedHashMap<String, Executable>(16, 0.75f, true);
+	private Lock lock = new Lock();
+
+	private static final int pageSize = Processor.pageSize;
+	private static final char dbgProcess = 'a';
+}
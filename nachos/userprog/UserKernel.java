@@ -1,7 +1,7 @@
 package nachos.userprog;
 
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 
 import nachos.machine.*;
 import nachos.threads.*;
@@ -12,8 +12,6 @@ import nachos.userprog.*;
  */
 public class UserKernel extends ThreadedKernel {
 
-	private static LinkedList<Integer> pageTable = new LinkedList<Integer>(); 
-
 	private static int nextPid = 0;  
 
 	private static HashMap<Integer, UserProcess>mapOfProcesses = new HashMap<Integer, UserProcess>();
@@ -38,11 +36,18 @@ public class UserKernel extends ThreadedKernel {
 			public void run() { exceptionHandler(); }
 		});
 
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		freePageMap = new long[(numPhysPages+63) / 64];
+		for (int ppn=0; ppn<numPhysPages; ppn++)
+			freePageMap[ppn/64] |= 1L << ppn;
 
-		int numberOfPhysicalPages = Machine.processor().getNumPhysPages();
-		for(int index = 0; index < numberOfPhysicalPages; index++){
-			pageTable.add(index);
-		}
+		numFreePages = numPhysPages;
+		Machine.setNumFreePages(numFreePages);
+
+		textLock = new Lock();
+
+		coffCache = new CoffCache(Config.getInteger("UserKernel.coffCachePages", 0),
+					  Config.getInteger("UserKernel.coffCacheFiles", 4));
 	}
 
 	/**
@@ -124,23 +129,341 @@ public class UserKernel extends ThreadedKernel {
 	}
 
 
-	public static int getFreePage(){
-		int pageNumber = -1;
-		Machine.interrupt().disable();
-		if(!pageTable.isEmpty()){
-			pageNumber = pageTable.removeFirst();
+	/**
+	 * Allocate a physical page.
+	 *
+	 * @return	the page number, or -1 if there are no free pages.
+	 */
+	public static int getFreePage() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int ppn = -1;
+		for (int i=0; i<freePageMap.length; i++) {
+			if (freePageMap[i] != 0) {
+				ppn = i*64 + Long.numberOfTrailingZeros(freePageMap[i]);
+				take(ppn, 1);
+				break;
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return ppn;
+	}
+
+	/**
+	 * Free a physical page allocated by <tt>getFreePage()</tt> or
+	 * <tt>allocatePages()</tt>.
+	 *
+	 * @param	ppn	the page number.
+	 */
+	public static void addFreePage(int ppn) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue((freePageMap[ppn/64] & (1L << ppn)) == 0);
+		freePageMap[ppn/64] |= 1L << ppn;
+		numFreePages++;
+		Machine.setNumFreePages(numFreePages);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Allocate <i>count</i> physical pages at once. If there is a run of
+	 * <i>count</i> contiguous free pages, the pages come from the first such
+	 * run, so that copies to and from them can be done in one piece.
+	 * Otherwise they are the first free pages in physical memory.
+	 *
+	 * @param	count	the number of pages to allocate.
+	 * @return	the page numbers, or <tt>null</tt> if there are fewer than
+	 *		<i>count</i> free pages, in which case none are allocated.
+	 */
+	public static int[] allocatePages(int count) {
+		Lib.assertTrue(count >= 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		int[] pages = null;
+		if (count <= numFreePages) {
+			pages = new int[count];
+
+			int first = findRun(count);
+			if (first >= 0) {
+				take(first, count);
+				for (int i=0; i<count; i++)
+					pages[i] = first + i;
+			}
+			else {
+				int i = 0;
+				for (int word=0; i<count; word++) {
+					long free = freePageMap[word];
+					for (; free != 0 && i<count; free &= free-1)
+						pages[i++] = word*64 + Long.numberOfTrailingZeros(free);
+				}
+
+				for (i=0; i<count; i++)
+					take(pages[i], 1);
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return pages;
+	}
+
+	/**
+	 * Free physical pages allocated by <tt>getFreePage()</tt> or
+	 * <tt>allocatePages()</tt>.
+	 *
+	 * @param	pages	an array containing the page numbers.
+	 * @param	count	the number of pages at the start of the array to
+	 *			free.
+	 */
+	public static void freePages(int[] pages, int count) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i=0; i<count; i++) {
+			int ppn = pages[i];
+			Lib.assertTrue((freePageMap[ppn/64] & (1L << ppn)) == 0);
+			freePageMap[ppn/64] |= 1L << ppn;
+		}
+
+		numFreePages += count;
+		Machine.setNumFreePages(numFreePages);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Return the version of the file with the specified name, which changes
+	 * every time <tt>fileChanged()</tt> is called for it. A process should
+	 * read the version before it opens an executable, and pass it to
+	 * <tt>acquireText()</tt>.
+	 *
+	 * @param	name	the name of the file.
+	 * @return	the file's current version.
+	 */
+	public static int getFileVersion(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Integer version = fileVersions.get(name);
+		if (version == null) {
+			version = 0;
+			fileVersions.put(name, version);
 		}
-		Machine.interrupt().enable();
-		return pageNumber;
+
+		Machine.interrupt().restore(intStatus);
+
+		return version;
 	}
 
-	public static void addFreePage(int pageNumber){
-		Machine.interrupt().disable();
-		pageTable.add(pageNumber);
-		Machine.interrupt().enable();
+	/**
+	 * Note that the file with the specified name has been created, written
+	 * or removed. Executables run from it from now on are loaded afresh:
+	 * its shared read-only pages are detached, so that new processes do not
+	 * get them, though processes already using them keep them until they
+	 * release them, and it is dropped from the executable cache.
+	 *
+	 * @param	name	the name of the file.
+	 */
+	public static void fileChanged(String name) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		// only files that have been run can be shared or cached, so the
+		// writes of every other file are done here
+		Integer version = fileVersions.get(name);
+		if (version != null) {
+			fileVersions.put(name, version+1);
+			sharedText.remove(name);
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		if (version != null)
+			coffCache.invalidate(name);
 	}
 
+	/**
+	 * Return the physical pages holding the read-only sections of an
+	 * executable, shared by every process running the same version of the
+	 * same file. The first process to ask loads them; later ones find them
+	 * already loaded. If the file has changed since <i>version</i>, the
+	 * pages are loaded for this process alone. Each successful call must be
+	 * matched by a call to <tt>releaseText()</tt>.
+	 *
+	 * @param	name	the name of the file containing the executable.
+	 * @param	version	the version of the file, from
+	 *			<tt>getFileVersion()</tt>, when it was opened.
+	 * @param	coff	the executable.
+	 * @param	numPages	the number of pages in the process's address
+	 *				space.
+	 * @return	the shared pages, or <tt>null</tt> if there is not enough
+	 *		physical memory.
+	 */
+	static SharedText acquireText(String name, int version, Coff coff,
+			int numPages) {
+		textLock.acquire();
+
+		boolean intStatus = Machine.interrupt().disable();
+		SharedText text = sharedText.get(name);
+		if (text != null && text.version != version)
+			text = null;
+		Machine.interrupt().restore(intStatus);
+
+		if (text == null) {
+			text = loadText(coff, numPages);
+
+			if (text != null) {
+				text.name = name;
+				text.version = version;
+
+				// a change while loading leaves these pages unshared
+				intStatus = Machine.interrupt().disable();
+				if (fileVersions.get(name) == version)
+					sharedText.put(name, text);
+				Machine.interrupt().restore(intStatus);
+			}
+		}
 
+		if (text != null)
+			text.refCount++;
+
+		textLock.release();
+
+		return text;
+	}
+
+	/**
+	 * Release the read-only pages returned by <tt>acquireText()</tt>. The
+	 * last process to release them frees them.
+	 *
+	 * @param	text	the pages returned by <tt>acquireText()</tt>.
+	 */
+	static void releaseText(SharedText text) {
+		textLock.acquire();
+
+		Lib.assertTrue(text.refCount > 0);
+
+		if (--text.refCount == 0) {
+			boolean intStatus = Machine.interrupt().disable();
+			if (sharedText.get(text.name) == text)
+				sharedText.remove(text.name);
+			Machine.interrupt().restore(intStatus);
+
+			freePages(text.frames, text.frames.length);
+		}
+
+		textLock.release();
+	}
+
+	private static SharedText loadText(Coff coff, int numPages) {
+		int count = 0;
+		for (int s=0; s<coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (section.isReadOnly())
+				count += section.getLength();
+		}
+
+		int[] frames = allocatePages(count);
+		if (frames == null)
+			return null;
+
+		SharedText text = new SharedText();
+		text.frames = frames;
+		text.pages = new int[numPages];
+		Arrays.fill(text.pages, -1);
+
+		int next = 0;
+		for (int s=0; s<coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+
+			for (int i=0; i<section.getLength(); i++) {
+				text.pages[section.getFirstVPN()+i] = frames[next];
+				section.loadPage(i, frames[next]);
+				next++;
+			}
+		}
+
+		return text;
+	}
+
+	/**
+	 * The read-only pages of a version of an executable, shared by the
+	 * processes running it.
+	 */
+	static class SharedText {
+		/** The name of the file containing the executable. */
+		String name;
+		/** The version of the file the pages were loaded from. */
+		int version;
+		/** The physical page of each virtual page, or -1. */
+		int[] pages;
+		/** The physical pages, for freeing. */
+		int[] frames;
+		/** The number of processes using the pages. */
+		int refCount = 0;
+	}
+
+	/**
+	 * Return the number of free physical pages.
+	 */
+	public static int getNumFreePages() {
+		return numFreePages;
+	}
+
+	/**
+	 * Return the first page of the first run of <i>count</i> contiguous free
+	 * pages, or -1 if there is none. Skips a whole word at a time where no
+	 * page is free.
+	 */
+	private static int findRun(int count) {
+		if (count == 0)
+			return 0;
+
+		int numPhysPages = Machine.processor().getNumPhysPages();
+		int runStart = 0, runLength = 0;
+
+		for (int ppn=0; ppn<numPhysPages; ) {
+			long word = freePageMap[ppn/64];
+
+			if (ppn%64 == 0 && word == 0) {
+				runLength = 0;
+				ppn += 64;
+				continue;
+			}
+
+			if ((word & (1L << ppn)) == 0) {
+				runLength = 0;
+			}
+			else {
+				if (runLength == 0)
+					runStart = ppn;
+				if (++runLength == count)
+					return runStart;
+			}
+
+			ppn++;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Mark <i>count</i> pages starting at <i>first</i> allocated.
+	 */
+	private static void take(int first, int count) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		for (int ppn=first; ppn<first+count; ppn++) {
+			Lib.assertTrue((freePageMap[ppn/64] & (1L << ppn)) != 0);
+			freePageMap[ppn/64] &= ~(1L << ppn);
+		}
+
+		numFreePages -= count;
+		Machine.setNumFreePages(numFreePages);
+	}
 
 	public static int getNextPid() {                               // @BCA 
 		int retval;                                                // @BCA
@@ -187,6 +510,33 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible reference to the synchronized console. */
 	public static SynchConsole console;
 
+	/**
+	 * Globally accessible reference to the executable cache. Its size in
+	 * pages is given by <tt>UserKernel.coffCachePages</tt>, and is 0 unless
+	 * set. <tt>UserKernel.coffCacheFiles</tt>, 4 unless set, bounds how many
+	 * cached executables may keep their files open.
+	 */
+	public static CoffCache coffCache;
+
+	/** A bit for each physical page, set if the page is free. */
+	private static long[] freePageMap;
+	private static int numFreePages;
+
+	/**
+	 * The shared read-only pages of the current version of each executable
+	 * being run. Changed only with interrupts disabled.
+	 */
+	private static HashMap<String, SharedText> sharedText =
+		new HashMap<String, SharedText>();
+	/** Serializes loading shared read-only pages. */
+	private static Lock textLock;
+	/**
+	 * The version of each file that has been run. Changed only with
+	 * interrupts disabled.
+	 */
+	private static HashMap<String, Integer> fileVersions =
+		new HashMap<String, Integer>();
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
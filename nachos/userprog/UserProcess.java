@@ -4,7 +4,6 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
 import java.io.FileDescriptor;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -34,6 +33,8 @@ public class UserProcess {
 	private int parentProcessID;
 	private UThread thread; 
 	private int exitStatus;
+	/** Whether exiting halts the machine. */
+	private boolean haltOnExit;
 	private LinkedList<Integer> children = new LinkedList<Integer>(); 
 
 
@@ -54,15 +55,10 @@ public class UserProcess {
 		fileDescriptors[fileHandle].position = 0;   
 
 		processID = UserKernel.getNextPid();                       
+		haltOnExit = (processID == ROOT);
 
 		/* register this new process in UserKernel's map                           */
 		UserKernel.registerProcess(processID, this);   
-
-		int numPhysPages = Machine.processor().getNumPhysPages();
-		pageTable = new TranslationEntry[numPhysPages];
-		for (int index=0; index<numPhysPages; index++){
-			pageTable[index] = new TranslationEntry(index,index, true,false,false,false);
-		}
 	}
 
 	/**
@@ -76,6 +72,37 @@ public class UserProcess {
 		return (UserProcess)Lib.constructObject(Machine.getProcessClassName());
 	}
 
+	/**
+	 * Return this process's ID.
+	 *
+	 * @return	the process ID.
+	 */
+	public int getProcessID() {
+		return processID;
+	}
+
+	/**
+	 * Return the thread running this process, or <tt>null</tt> if it has not
+	 * been started by <tt>execute()</tt>.
+	 *
+	 * @return	the thread running this process.
+	 */
+	public UThread getThread() {
+		return thread;
+	}
+
+	/**
+	 * Set whether the machine halts when this process exits. By default,
+	 * only the root process halts it. A kernel that runs processes itself
+	 * and waits for them can use this to keep running after they exit.
+	 *
+	 * @param	haltOnExit	<tt>true</tt> if exiting should halt the
+	 *				machine.
+	 */
+	public void setHaltOnExit(boolean haltOnExit) {
+		this.haltOnExit = haltOnExit;
+	}
+
 	/**
 	 * Execute the specified program with the specified arguments. Attempts to
 	 * load the program, and then forks a thread to run it.
@@ -88,7 +115,8 @@ public class UserProcess {
 		if (!load(name, args))
 			return false;
 
-		new UThread(this).setName(name).fork();
+		thread = new UThread(this);
+		thread.setName(name).fork();
 
 		return true;
 	}
@@ -165,27 +193,7 @@ public class UserProcess {
 	 */
 	public int readVirtualMemory(int vaddr, byte[] data, int offset,
 			int length) {
-		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-
-		byte[] memory = Machine.processor().getMemory();
-
-		int virtualPageNumber = Machine.processor().pageFromAddress(vaddr);
-		int addressOffset = Machine.processor().offsetFromAddress(vaddr);
-
-		TranslationEntry entry = null;
-		entry = pageTable[virtualPageNumber];
-		entry.used = true;
-		int physicalPageNumber = entry.ppn;
-		int pageAddress = (physicalPageNumber*pageSize) + addressOffset;
-		if(physicalPageNumber < 0 || physicalPageNumber >= Machine.processor().getNumPhysPages()){
-			Lib.assertNotReached("\t UserProcess.readVirtualMemory(): bad ppn "+physicalPageNumber);
-			return 0;
-		}
-		int amount = Math.min(length, memory.length-vaddr);
-		System.out.println("Reading amount: "+amount);
-		System.arraycopy(memory, vaddr, data, offset, amount);
-
-		return amount;
+		return transfer(vaddr, data, offset, length, false);
 	}
 
 	/**
@@ -217,35 +225,121 @@ public class UserProcess {
 	 */
 	public int writeVirtualMemory(int vaddr, byte[] data, int offset,
 			int length) {
+		return transfer(vaddr, data, offset, length, true);
+	}
+
+	/**
+	 * Copy between virtual memory and an array, a page at a time. Pages that
+	 * follow one another in physical memory as well are copied together, with
+	 * a single <tt>arraycopy()</tt>. Stops at the first page that cannot be
+	 * accessed.
+	 *
+	 * @return	the number of bytes successfully transferred.
+	 */
+	private int transfer(int vaddr, byte[] data, int offset, int length,
+			boolean write) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
 
-		int virtualPageNumber = Machine.processor().pageFromAddress(vaddr);
-		int addressOffset = Machine.processor().offsetFromAddress(vaddr);
+		int amount = 0;
+		while (amount < length) {
+			int paddr = translate(vaddr+amount, write);
+			if (paddr < 0)
+				break;
+
+			int runLength = runLength(vaddr+amount, paddr, length-amount, write);
 
-		TranslationEntry entry = null;
-		entry = pageTable[virtualPageNumber];
-		entry.used = true;
-		entry.dirty = true;
-		int physicalPageNumber = entry.ppn;
-		int pageAddress = (physicalPageNumber*pageSize) + addressOffset;
+			if (write)
+				System.arraycopy(data, offset+amount, memory, paddr, runLength);
+			else
+				System.arraycopy(memory, paddr, data, offset+amount, runLength);
 
-		if(entry.readOnly){
-			Lib.assertNotReached("\t [UserProcess.writeVirtualMemory]: write read-only page "+physicalPageNumber);
-			return 0;
+			unpinRun(vaddr+amount, runLength);
+			amount += runLength;
 		}
 
-		if(physicalPageNumber < 0 || physicalPageNumber >= Machine.processor().getNumPhysPages()){
-			Lib.assertNotReached("\t [UserProcess.writeVirtualMemory]: bad ppn "+physicalPageNumber);
-			return 0;
+		return amount;
+	}
+
+	/**
+	 * Return how many bytes, up to <i>length</i>, starting at <i>vaddr</i>
+	 * are also contiguous in physical memory, starting at <i>paddr</i>. The
+	 * run extends page by page for as long as the physical pages are
+	 * adjacent.
+	 */
+	private int runLength(int vaddr, int paddr, int length, boolean write) {
+		int runLength = Math.min(length, pageSize - paddr%pageSize);
+
+		while (runLength < length) {
+			int next = translate(vaddr+runLength, write);
+			if (next != paddr+runLength) {
+				if (next >= 0)
+					unpin(vaddr+runLength);
+				break;
+			}
+
+			runLength += Math.min(length-runLength, pageSize);
 		}
 
-		int amount = Math.min(length, memory.length-vaddr);
-		System.out.println("Writing amount: "+amount);
-		System.arraycopy(data, offset, memory, vaddr, amount);
+		return runLength;
+	}
 
-		return amount;
+	/**
+	 * Unpin every page of a run of virtual memory translated by
+	 * <tt>translate()</tt>.
+	 */
+	private void unpinRun(int vaddr, int length) {
+		int firstVPN = Processor.pageFromAddress(vaddr);
+		int lastVPN = Processor.pageFromAddress(vaddr+length-1);
+
+		for (int vpn=firstVPN; vpn<=lastVPN; vpn++)
+			unpin(Processor.makeAddress(vpn, 0));
+	}
+
+	/**
+	 * Translate a virtual address for the kernel to access on behalf of this
+	 * process, marking the page used, and dirty if <i>write</i> is
+	 * <tt>true</tt>.
+	 *
+	 * @param	vaddr	the virtual address to translate.
+	 * @param	write	<tt>true</tt> if the kernel will write to the address.
+	 * @return	the physical address, or -1 if the page is invalid, or
+	 *		read-only and <i>write</i> is <tt>true</tt>.
+	 *
+	 * @see	#unpin
+	 */
+	protected int translate(int vaddr, boolean write) {
+		if (vaddr < 0)
+			return -1;
+
+		int vpn = Processor.pageFromAddress(vaddr);
+		if (pageTable == null || vpn >= pageTable.length)
+			return -1;
+
+		TranslationEntry entry = pageTable[vpn];
+		if (!entry.valid || (write && entry.readOnly))
+			return -1;
+
+		if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+			return -1;
+
+		entry.used = true;
+		if (write)
+			entry.dirty = true;
+
+		return Processor.makeAddress(entry.ppn, Processor.offsetFromAddress(vaddr));
+	}
+
+	/**
+	 * Called once the kernel is done with a page it translated with
+	 * <tt>translate()</tt>, once for each successful call. A subclass that
+	 * can take pages away from a process keeps a translated page in place
+	 * until then. By default, does nothing.
+	 *
+	 * @param	vaddr	the virtual address that was translated.
+	 */
+	protected void unpin(int vaddr) {
 	}
 
 	/**
@@ -261,20 +355,16 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
-			return false;
-		}
+		// processes running the same version of a file share its read-only
+		// pages, so note the version before reading the file
+		textName = name;
+		textVersion = UserKernel.getFileVersion(name);
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
+		CoffCache.Executable executable = UserKernel.coffCache.open(name);
+		if (executable == null)
 			return false;
-		}
+
+		coff = executable;
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -344,15 +434,41 @@ public class UserProcess {
 	 * @return	<tt>true</tt> if the sections were successfully loaded.
 	 */
 	protected boolean loadSections() {
-		if (numPages > Machine.processor().getNumPhysPages()) {
+		text = UserKernel.acquireText(textName, textVersion, coff, numPages);
+		if (text == null) {
 			coff.close();
 			Lib.debug(dbgProcess, "\tinsufficient physical memory");
 			return false;
 		}
 
-		// load sections
+		int[] textPages = text.pages;
+		int numTextPages = 0;
+		for (int vpn=0; vpn<numPages; vpn++) {
+			if (textPages[vpn] >= 0)
+				numTextPages++;
+		}
+
+		int[] pages = UserKernel.allocatePages(numPages - numTextPages);
+		if (pages == null) {
+			UserKernel.releaseText(text);
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+
+		pageTable = new TranslationEntry[numPages];
+		for (int vpn=0, next=0; vpn<numPages; vpn++) {
+			if (textPages[vpn] >= 0)
+				pageTable[vpn] = new TranslationEntry(vpn, textPages[vpn], true, true, false, false);
+			else
+				pageTable[vpn] = new TranslationEntry(vpn, pages[next++], true, false, false, false);
+		}
+
+		// load sections, except for the shared read-only ones
 		for (int s=0; s<coff.getNumSections(); s++) {
 			CoffSection section = coff.getSection(s);
+			if (section.isReadOnly())
+				continue;
 
 			Lib.debug(dbgProcess, "\tinitializing " + section.getName()
 					+ " section (" + section.getLength() + " pages)");
@@ -374,11 +490,21 @@ public class UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		  for (int index = 0; index < numPages; index++) {                               
-	            UserKernel.addFreePage(pageTable[index].ppn);                        
-	            pageTable[index].valid = false;                                    
-	        } 
-	}    
+		int[] pages = new int[numPages];
+		int count = 0;
+
+		for (int vpn=0; vpn<numPages; vpn++) {
+			if (pageTable[vpn].valid && !pageTable[vpn].readOnly) {
+				pages[count++] = pageTable[vpn].ppn;
+				pageTable[vpn].valid = false;
+			}
+		}
+
+		UserKernel.freePages(pages, count);
+		UserKernel.releaseText(text);
+
+		coff.close();
+	}
 
 	/**
 	 * Initialize the processor's registers in preparation for running the
@@ -404,11 +530,12 @@ public class UserProcess {
 	}
 
 	/**
-	 * Handle the halt() system call. 
+	 * Handle the halt() system call. Shuts down through the kernel, so that
+	 * it can clean up before the machine halts.
 	 */
 	private int handleHalt() {
 
-		Machine.halt();
+		Kernel.kernel.terminate();
 
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -436,6 +563,7 @@ public class UserProcess {
 	private int create(int fileAddress){
 		String fileName = readVirtualMemoryString(fileAddress, MAX_STRING_LENGTH);
 		OpenFile file = UserKernel.fileSystem.open(fileName, true);
+		UserKernel.fileChanged(fileName);
 		System.out.println("Creating File -- Filename: "+ fileName + " File: " + file);
 		if (file == null){
 			return -1;
@@ -477,46 +605,69 @@ public class UserProcess {
 
 	private int read(int fileHandler, int bufferAddress, int bufferSize){
 		
-		if(fileHandler < 0  || fileHandler > MAX_OPEN_FILES || fileDescriptors[fileHandler].file == null){
+		if(fileHandler < 0  || fileHandler >= MAX_OPEN_FILES || fileDescriptors[fileHandler].file == null || bufferSize < 0){
 			return -1;
 		}
 
-		FileDescriptor fileDescriptor = fileDescriptors[fileHandler];
-		System.out.println("read for file " + fileDescriptor.filename + " with handler "+ fileHandler);
-		byte[] buffer = new byte[bufferSize];
-
-		int bytesRead = fileDescriptor.file.read(fileDescriptor.position, buffer, 0, bufferSize);
-		if (bytesRead < 0){
-			return -1;
-		} else{
-			int positionMoved = writeVirtualMemory(bufferAddress, buffer);
-			fileDescriptor.position += positionMoved;
-			return bytesRead;
-		}
+		return transferFile(fileDescriptors[fileHandler], bufferAddress, bufferSize, false);
 	}
 
 	private int write(int fileHandler, int bufferAddress, int bufferSize) {
-		if (fileHandler < 0 || fileHandler > MAX_OPEN_FILES || fileDescriptors[fileHandler].file == null){
+		if (fileHandler < 0 || fileHandler >= MAX_OPEN_FILES || fileDescriptors[fileHandler].file == null || bufferSize < 0){
 			return -1;   
 		}
 
+		UserKernel.fileChanged(fileDescriptors[fileHandler].filename);
+
+		return transferFile(fileDescriptors[fileHandler], bufferAddress, bufferSize, true);
+	}
+
+	/**
+	 * Move data between an open file and this process's virtual memory,
+	 * handing the file each physically contiguous run of the buffer in main
+	 * memory, so that the data is copied only once, by the file itself.
+	 * Advances the file position by the number of bytes moved.
+	 *
+	 * @param	fileDescriptor	the file to read or write.
+	 * @param	vaddr	the start of the buffer in virtual memory.
+	 * @param	length	the size of the buffer.
+	 * @param	toFile	<tt>true</tt> to write the buffer to the file,
+	 *			<tt>false</tt> to read the file into the buffer.
+	 * @return	the number of bytes moved, or -1 if nothing could be moved
+	 *		because of an error.
+	 */
+	private int transferFile(FileDescriptor fileDescriptor, int vaddr,
+			int length, boolean toFile) {
+		byte[] memory = Machine.processor().getMemory();
 
-		FileDescriptor fileDescriptor = fileDescriptors[fileHandler];                                  
-		System.out.println("write for file " + fileDescriptor.filename  + " with handler "+ fileHandler);
-		byte[] buf = new byte[bufferSize];                                   
+		int amount = 0;
+		while (amount < length) {
+			// reading the file writes to memory, and the reverse
+			int paddr = translate(vaddr+amount, !toFile);
+			if (paddr < 0)
+				return (amount > 0) ? amount : -1;
 
-		int bytesRead = readVirtualMemory(bufferAddress, buf);                  
+			int runLength = runLength(vaddr+amount, paddr, length-amount, !toFile);
 
-		// invoke read through stubFilesystem                          
-		int bytesWriten = fileDescriptor.file.write(fileDescriptor.position, buf, 0, bytesRead);       
+			int moved;
+			if (toFile)
+				moved = fileDescriptor.file.write(fileDescriptor.position, memory, paddr, runLength);
+			else
+				moved = fileDescriptor.file.read(fileDescriptor.position, memory, paddr, runLength);
 
-		if (bytesWriten < 0) {                                                 
-			return -1;                                                    
-		}                                                              
-		else {                                                         
-			fileDescriptor.position = fileDescriptor.position + bytesWriten;                        
-			return bytesWriten;                                             
-		}                                                              
+			unpinRun(vaddr+amount, runLength);
+
+			if (moved < 0)
+				return (amount > 0) ? amount : -1;
+
+			fileDescriptor.position += moved;
+			amount += moved;
+
+			if (moved < runLength)
+				break;
+		}
+
+		return amount;
 	}
 
 	private int close(int fileHandler){
@@ -533,6 +684,7 @@ public class UserProcess {
 		fileDescriptor.file.close();
 		if(fileDescriptor.toRemove){
 			noErrors = UserKernel.fileSystem.remove(fileDescriptor.filename);
+			UserKernel.fileChanged(fileDescriptor.filename);
 			fileDescriptor.toRemove = false;
 		}
 
@@ -557,6 +709,7 @@ public class UserProcess {
 		
 		if(!fileDescriptors[fileHandle].toRemove){
 			noError = UserKernel.fileSystem.remove(fileDescriptors[fileHandle].filename);
+			UserKernel.fileChanged(fileDescriptors[fileHandle].filename);
 		} else {
 			fileDescriptors[fileHandle].toRemove = true;
 		}
@@ -654,7 +807,7 @@ public class UserProcess {
 		this.exitStatus = exitStatus;
 		unloadSections();
 
-		if (processID == ROOT) {            
+		if (haltOnExit) {            
 			Kernel.kernel.terminate();           
 		} else {            
 			Lib.assertTrue(KThread.currentThread() == this.thread);
@@ -785,8 +938,27 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Terminate this process because it caused an exception it cannot
+	 * recover from, as if it had called <tt>exit()</tt>. Other processes
+	 * keep running. Never returns.
+	 *
+	 * @param	cause	the user exception that occurred.
+	 */
+	protected void handleFatalException(int cause) {
+		Lib.debug(dbgProcess, "Killing process " + processID + ": " +
+				Processor.exceptionNames[cause]);
+
+		exit(-1);
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
+	/** The name and version of the program's file when it was opened. */
+	protected String textName;
+	protected int textVersion;
+	/** The program's read-only pages, shared with other processes. */
+	UserKernel.SharedText text;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The clock, or second chance, replacement policy. A hand sweeps around
+ * physical memory. A page whose used bit is set gets a second chance: the
+ * bit is cleared and the hand moves on. The first page found with its used
+ * bit clear is evicted.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int chooseVictim() {
+	int numPages = getNumPages();
+
+	// after one sweep every used bit is clear, so two always suffice
+	for (int i=0; i<2*numPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPages;
+
+	    if (!isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = getEntry(ppn);
+	    if (entry.used)
+		entry.used = false;
+	    else
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,69 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The enhanced clock replacement policy. Pages fall into four classes by
+ * their used and dirty bits, and the policy evicts a page from the lowest
+ * class it can find, preferring pages that have not been used recently, and
+ * then pages that need not be written to swap:
+ *
+ * <ol>
+ * <li>not used, not dirty
+ * <li>not used, dirty
+ * <li>used, not dirty
+ * <li>used, dirty
+ * </ol>
+ *
+ * <p>
+ * The hand first sweeps for a class 1 page without changing anything. It
+ * then sweeps for a class 2 page, clearing used bits as it goes, so that if
+ * that fails too, the next two sweeps find what were class 3 and 4 pages.
+ */
+public class EnhancedClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new enhanced clock policy.
+     */
+    public EnhancedClockPolicy() {
+    }
+
+    public int chooseVictim() {
+	int numPages = getNumPages();
+
+	for (int round=0; round<2; round++) {
+	    // not used and not dirty
+	    for (int i=0; i<numPages; i++) {
+		int ppn = advance(numPages);
+
+		if (isEvictable(ppn) && !getEntry(ppn).used &&
+		    !getEntry(ppn).dirty)
+		    return ppn;
+	    }
+
+	    // not used but dirty, giving the rest a second chance
+	    for (int i=0; i<numPages; i++) {
+		int ppn = advance(numPages);
+		if (!isEvictable(ppn))
+		    continue;
+
+		TranslationEntry entry = getEntry(ppn);
+		if (!entry.used)
+		    return ppn;
+
+		entry.used = false;
+	    }
+	}
+
+	return -1;
+    }
+
+    private int advance(int numPages) {
+	int ppn = hand;
+	hand = (hand+1) % numPages;
+	return ppn;
+    }
+
+    private int hand = 0;
+}
@@ -0,0 +1,165 @@
+package nachos.vm;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An inverted page table, with one entry for each physical page: the process
+ * that owns it, the translation entry that maps it, and how many times it is
+ * pinned. A hash index on (process ID, virtual page number) finds the
+ * physical page holding a given virtual page in constant time.
+ *
+ * <p>
+ * The translation entry of a page is the same object as the one in its
+ * owner's page table, so used and dirty bits set through either are seen by
+ * both.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new inverted page table.
+     *
+     * @param	numPhysPages	the number of physical pages.
+     */
+    public InvertedPageTable(int numPhysPages) {
+	owners = new VMProcess[numPhysPages];
+	pids = new int[numPhysPages];
+	entries = new TranslationEntry[numPhysPages];
+	pinCounts = new int[numPhysPages];
+	chains = new int[numPhysPages];
+
+	int numBuckets = Integer.highestOneBit(Math.max(numPhysPages, 1)) * 2;
+	buckets = new int[numBuckets];
+	Arrays.fill(buckets, -1);
+    }
+
+    /**
+     * Return the number of physical pages.
+     */
+    public int getNumPages() {
+	return owners.length;
+    }
+
+    /**
+     * Record that a physical page holds a virtual page of a process.
+     *
+     * @param	ppn	the physical page.
+     * @param	owner	the process.
+     * @param	pid	the ID of the process.
+     * @param	entry	the process's page table entry for the page.
+     */
+    public void insert(int ppn, VMProcess owner, int pid,
+		       TranslationEntry entry) {
+	Lib.assertTrue(owners[ppn] == null);
+
+	owners[ppn] = owner;
+	pids[ppn] = pid;
+	entries[ppn] = entry;
+
+	int bucket = hash(pid, entry.vpn);
+	chains[ppn] = buckets[bucket];
+	buckets[bucket] = ppn;
+    }
+
+    /**
+     * Record that a physical page no longer holds anything. Clears its pins.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void remove(int ppn) {
+	Lib.assertTrue(owners[ppn] != null);
+
+	int bucket = hash(pids[ppn], entries[ppn].vpn);
+	if (buckets[bucket] == ppn) {
+	    buckets[bucket] = chains[ppn];
+	}
+	else {
+	    int prev = buckets[bucket];
+	    while (chains[prev] != ppn)
+		prev = chains[prev];
+	    chains[prev] = chains[ppn];
+	}
+
+	owners[ppn] = null;
+	entries[ppn] = null;
+	pinCounts[ppn] = 0;
+    }
+
+    /**
+     * Find the physical page holding a virtual page of a process.
+     *
+     * @param	pid	the ID of the process.
+     * @param	vpn	the virtual page.
+     * @return	the physical page, or -1 if the virtual page is not in
+     *		memory.
+     */
+    public int lookup(int pid, int vpn) {
+	for (int ppn=buckets[hash(pid, vpn)]; ppn != -1; ppn=chains[ppn]) {
+	    if (pids[ppn] == pid && entries[ppn].vpn == vpn)
+		return ppn;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the process that owns a physical page, or <tt>null</tt> if the
+     * page is free.
+     */
+    public VMProcess getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    /**
+     * Return the translation entry that maps a physical page, or
+     * <tt>null</tt> if the page is free.
+     */
+    public TranslationEntry getEntry(int ppn) {
+	return entries[ppn];
+    }
+
+    /**
+     * Prevent a physical page from being evicted until a matching call to
+     * <tt>unpin()</tt>.
+     */
+    public void pin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	pinCounts[ppn]++;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Undo one call to <tt>pin()</tt>.
+     */
+    public void unpin(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(pinCounts[ppn] > 0);
+	pinCounts[ppn]--;
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test whether a physical page is pinned.
+     */
+    public boolean isPinned(int ppn) {
+	return pinCounts[ppn] > 0;
+    }
+
+    private int hash(int pid, int vpn) {
+	int h = pid*0x9E3779B1 + vpn;
+	h ^= h >>> 16;
+	return h & (buckets.length-1);
+    }
+
+    private VMProcess[] owners;
+    private int[] pids;
+    private TranslationEntry[] entries;
+    private int[] pinCounts;
+
+    /** The first physical page in each hash bucket, or -1. */
+    private int[] buckets;
+    /** The next physical page in the same hash bucket, or -1. */
+    private int[] chains;
+}
@@ -0,0 +1,64 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A page replacement policy, which chooses the page to evict when a VM
+ * kernel runs out of physical memory. The policy is given by the
+ * <tt>nachos.conf</tt> key <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * Policies look at pages through <tt>VMKernel.invertedPageTable</tt>, and
+ * may clear the used bits of the translation entries they find there. They
+ * are always called with <tt>VMKernel.pageLock</tt> held, and with the TLB
+ * synced, so the used and dirty bits in the entries are up to date.
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Called when a physical page has been given to a process. By default,
+     * does nothing.
+     *
+     * @param	ppn	the physical page.
+     */
+    public void pageLoaded(int ppn) {
+    }
+
+    /**
+     * Choose a page to evict.
+     *
+     * @return	the physical page, which must hold a page and not be pinned,
+     *		or -1 if every page is pinned.
+     */
+    public abstract int chooseVictim();
+
+    /**
+     * Test whether a physical page can be evicted: it holds a page and is
+     * not pinned.
+     */
+    protected static boolean isEvictable(int ppn) {
+	return VMKernel.invertedPageTable.getOwner(ppn) != null &&
+	    !VMKernel.invertedPageTable.isPinned(ppn);
+    }
+
+    /**
+     * Return the translation entry for a physical page.
+     */
+    protected static TranslationEntry getEntry(int ppn) {
+	return VMKernel.invertedPageTable.getEntry(ppn);
+    }
+
+    /**
+     * Return the number of physical pages.
+     */
+    protected static int getNumPages() {
+	return VMKernel.invertedPageTable.getNumPages();
+    }
+}
@@ -0,0 +1,122 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A file that holds pages evicted from physical memory. The file is divided
+ * into page-sized slots, and a bitmap records which slots are in use. The
+ * file grows as more slots are needed.
+ *
+ * <p>
+ * The file is only created when the first page is written to it, so a run
+ * that never evicts a dirty page neither leaves a file behind nor uses up
+ * one of the file system's open files; the stub file system allows only 16.
+ * Once created, the file stays open until <tt>close()</tt> removes it, which
+ * <tt>VMKernel.terminate()</tt> does. A run that ends any other way, such as
+ * by an assertion failing, leaves the file behind.
+ */
+public class SwapFile {
+    /**
+     * Allocate a swap file with the specified name in the kernel's file
+     * system. The file is created, or truncated if it already exists, when
+     * the first page is written to it.
+     *
+     * @param	name	the name of the swap file.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Allocate a slot.
+     *
+     * @return	the slot number.
+     */
+    public int allocate() {
+	for (int i=0; i<usedSlots.length; i++) {
+	    if (usedSlots[i] != -1L) {
+		int slot = i*64 + Long.numberOfTrailingZeros(~usedSlots[i]);
+		usedSlots[i] |= 1L << slot;
+		return slot;
+	    }
+	}
+
+	long[] newUsedSlots = new long[usedSlots.length*2];
+	System.arraycopy(usedSlots, 0, newUsedSlots, 0, usedSlots.length);
+
+	int slot = usedSlots.length*64;
+	usedSlots = newUsedSlots;
+	usedSlots[slot/64] |= 1L << slot;
+
+	return slot;
+    }
+
+    /**
+     * Free a slot allocated by <tt>allocate()</tt>.
+     *
+     * @param	slot	the slot number.
+     */
+    public void free(int slot) {
+	Lib.assertTrue((usedSlots[slot/64] & (1L << slot)) != 0);
+
+	usedSlots[slot/64] &= ~(1L << slot);
+    }
+
+    /**
+     * Copy a physical page to a slot.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page to copy.
+     */
+    public void write(int slot, int ppn) {
+	if (file == null) {
+	    file = ThreadedKernel.fileSystem.open(name, true);
+	    Lib.assertTrue(file != null, "could not open swap file " + name);
+	}
+
+	int amount = file.write(slot*pageSize, Machine.processor().getMemory(),
+				ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap write failed");
+
+	Lib.debug(dbgVM, "\tswapped page " + ppn + " out to slot " + slot);
+    }
+
+    /**
+     * Copy a slot to a physical page.
+     *
+     * @param	slot	the slot number.
+     * @param	ppn	the physical page to copy to.
+     */
+    public void read(int slot, int ppn) {
+	int amount = file.read(slot*pageSize, Machine.processor().getMemory(),
+			       ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+
+	Machine.processor().invalidateDecodedPage(ppn);
+
+	Lib.debug(dbgVM, "\tswapped slot " + slot + " in to page " + ppn);
+    }
+
+    /**
+     * Close and remove the swap file, if it was created.
+     */
+    public void close() {
+	if (file == null)
+	    return;
+
+	file.close();
+	file = null;
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    /** The open swap file, or <tt>null</tt> if it has not been created. */
+    private OpenFile file = null;
+    /** A bit for each slot, set if the slot is in use. */
+    private long[] usedSlots = new long[1];
+
+    private static final int pageSize = Processor.pageSize;
+    private static final char dbgVM = 'v';
+}
@@ -0,0 +1,234 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * Manages the processor's software-managed TLB on behalf of the VM kernel.
+ *
+ * <p>
+ * The TLB is refilled one entry at a time, as user processes miss in it. For
+ * each slot, the manager remembers the page table entry it was filled from,
+ * so that the used and dirty bits the processor sets in the TLB can be
+ * copied back to the page table when the slot is replaced, when a page is
+ * evicted, and when the process is switched out.
+ *
+ * <p>
+ * The TLB has no address space tags, so every valid entry belongs to one
+ * process, the <i>owner</i>. Without tagging, the TLB is invalidated every
+ * time a process is switched out. With tagging, given by
+ * <tt>VMKernel.tlbTagging</tt>, each entry is tagged with its process
+ * instead. The TLB is left alone when a process is switched out, and only
+ * invalidated when a different process is switched in; a process switched
+ * back in after others have run gets the entries it had reloaded, as long as
+ * their pages are still in memory. A process that is interrupted only by
+ * kernel threads, or that is switched away from and back to, keeps its TLB.
+ *
+ * <p>
+ * All methods run with interrupts disabled, so that a context switch never
+ * sees the TLB half-updated.
+ */
+public class TLBManager {
+    /**
+     * Allocate a new TLB manager.
+     *
+     * @param	tagging	<tt>true</tt> if entries should survive context
+     *			switches.
+     */
+    public TLBManager(boolean tagging) {
+	this.tagging = tagging;
+
+	sources = new TranslationEntry[Machine.processor().getTLBSize()];
+    }
+
+    /**
+     * Put a page table entry of <i>process</i> in the TLB, in an invalid slot
+     * if there is one and otherwise in the slot after the one replaced last.
+     * Called when <i>process</i> is the current process and misses in the
+     * TLB.
+     *
+     * @param	process	the process that missed.
+     * @param	entry	the process's page table entry for the page.
+     */
+    public void fill(VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(entry.valid);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(owner == process);
+	Processor processor = Machine.processor();
+
+	int slot = -1;
+	for (int i=0; i<sources.length && slot == -1; i++) {
+	    if (sources[i] == null)
+		slot = i;
+	}
+
+	if (slot == -1) {
+	    slot = hand;
+	    hand = (hand+1) % sources.length;
+	    syncEntry(slot);
+	}
+
+	sources[slot] = entry;
+	processor.writeTLBEntry(slot, entry);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Copy the used and dirty bits of every TLB entry into the owner's page
+     * table, without invalidating anything. The used bits in the TLB are
+     * cleared, so that a page replacement policy that clears used bits in
+     * the page table sees only accesses made after it did so.
+     */
+    public void sync() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<sources.length; i++)
+	    syncEntry(i);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Invalidate any TLB entry that maps a virtual page of <i>process</i>,
+     * copying its used and dirty bits into the page table first. Called when
+     * the page is evicted.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page.
+     */
+    public void invalidate(VMProcess process, int vpn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (owner == process) {
+	    for (int i=0; i<sources.length; i++) {
+		if (sources[i] != null && sources[i].vpn == vpn)
+		    invalidateEntry(i);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Forget every TLB entry of <i>process</i>, because it is exiting.
+     *
+     * @param	process	the process.
+     */
+    public void release(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (owner == process) {
+	    for (int i=0; i<sources.length; i++)
+		invalidateEntry(i);
+
+	    owner = null;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Save the TLB state of <i>process</i>, which is being switched out.
+     * Without tagging, the TLB is invalidated. With tagging, the bits are
+     * copied back, and the page table entries the TLB holds are recorded in
+     * <i>process</i> to be reloaded when it next runs.
+     *
+     * @param	process	the process being switched out.
+     */
+    public void saveState(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (owner == process) {
+	    if (tagging) {
+		sync();
+		process.savedTLB = sources.clone();
+	    }
+	    else {
+		for (int i=0; i<sources.length; i++)
+		    invalidateEntry(i);
+
+		owner = null;
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Make <i>process</i>, which is being switched in, the owner of the TLB.
+     * With tagging, if another process owns the TLB, its entries are
+     * replaced by the ones saved for <i>process</i> whose pages are still in
+     * memory.
+     *
+     * @param	process	the process being switched in.
+     */
+    public void restoreState(VMProcess process) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (owner != process) {
+	    for (int i=0; i<sources.length; i++)
+		invalidateEntry(i);
+
+	    owner = process;
+
+	    TranslationEntry[] saved = process.savedTLB;
+	    if (tagging && saved != null) {
+		Processor processor = Machine.processor();
+
+		for (int i=0; i<saved.length; i++) {
+		    // a page evicted since was invalidated in the page table
+		    if (saved[i] != null && saved[i].valid) {
+			sources[i] = saved[i];
+			processor.writeTLBEntry(i, saved[i]);
+		    }
+		}
+	    }
+	}
+
+	process.savedTLB = null;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void syncEntry(int slot) {
+	if (sources[slot] == null)
+	    return;
+
+	Processor processor = Machine.processor();
+	TranslationEntry tlbEntry = processor.readTLBEntry(slot);
+
+	sources[slot].used |= tlbEntry.used;
+	sources[slot].dirty |= tlbEntry.dirty;
+
+	if (tlbEntry.used) {
+	    tlbEntry.used = false;
+	    processor.writeTLBEntry(slot, tlbEntry);
+	}
+    }
+
+    private void invalidateEntry(int slot) {
+	if (sources[slot] == null)
+	    return;
+
+	syncEntry(slot);
+	sources[slot] = null;
+
+	Processor processor = Machine.processor();
+	TranslationEntry tlbEntry = processor.readTLBEntry(slot);
+	tlbEntry.valid = false;
+	processor.writeTLBEntry(slot, tlbEntry);
+    }
+
+    private boolean tagging;
+
+    /** The process whose entries are in the TLB, or <tt>null</tt>. */
+    private VMProcess owner = null;
+    /** The page table entry each TLB slot was filled from, or <tt>null</tt>. */
+    private TranslationEntry[] sources;
+    /** The slot to replace next if none is invalid. */
+    private int hand = 0;
+}
@@ -21,6 +21,19 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
+	replacementPolicy = (ReplacementPolicy) Lib.constructObject(
+	    Config.getString("VMKernel.replacementPolicy", "nachos.vm.ClockPolicy"));
+
+	if (Machine.processor().hasTLB())
+	    tlb = new TLBManager(Config.getBoolean("VMKernel.tlbTagging", false));
+
+	pageLock = new Lock();
+	pageAvailable = new Condition2(pageLock);
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
     }
 
     /**
@@ -34,16 +47,207 @@ public class VMKernel extends UserKernel {
      * Start running user programs.
      */
     public void run() {
+	if (Config.getBoolean("VMKernel.pageFaultBenchmark", false)) {
+	    pageFaultBenchmark();
+	    terminate();
+	}
+
 	super.run();
     }
+
+    /**
+     * Run each benchmark workload to completion under each replacement
+     * policy in turn, and print the page faults and ticks each run took. A
+     * workload is one or more copies of <tt>matmult</tt> running at once.
+     * Each copy touches 7 pages, so the working set exceeds memory for four
+     * copies when run with <tt>-m 16</tt>, and even for one with
+     * <tt>-m 6</tt>.
+     *
+     * <p>
+     * So that the policies are compared under the same scheduling, every
+     * timer interrupt preempts the running copy while the benchmark runs,
+     * whichever scheduler is configured. Each run starts with physical
+     * memory empty and a newly constructed policy.
+     */
+    private void pageFaultBenchmark() {
+	String[] policies = {
+	    "nachos.vm.ClockPolicy",
+	    "nachos.vm.EnhancedClockPolicy",
+	    "nachos.vm.WSClockPolicy"
+	};
+	String program = "matmult.coff";
+	int[] copies = { 1, 4 };
+
+	System.out.println("page fault benchmark, "
+			   + Machine.processor().getNumPhysPages() + " pages");
+
+	ThreadedKernel.alarm.setPreemptAlways(true);
+
+	for (int i=0; i<policies.length; i++) {
+	    for (int j=0; j<copies.length; j++) {
+		// every run starts cold
+		Lib.assertTrue(getNumFreePages() ==
+			       Machine.processor().getNumPhysPages());
+		replacementPolicy =
+		    (ReplacementPolicy) Lib.constructObject(policies[i]);
+
+		int faults = Machine.getNumPageFaults();
+		long ticks = Machine.timer().getTime();
+
+		UserProcess[] processes = new UserProcess[copies[j]];
+		for (int k=0; k<processes.length; k++) {
+		    processes[k] = UserProcess.newUserProcess();
+		    processes[k].setHaltOnExit(false);
+		    Lib.assertTrue(processes[k].execute(program, new String[] { }));
+		}
+
+		for (int k=0; k<processes.length; k++)
+		    processes[k].getThread().join();
+
+		System.out.println("  " + policies[i] + " " + copies[j] + " x "
+				   + program + ": "
+				   + (Machine.getNumPageFaults() - faults) + " faults, "
+				   + (Machine.timer().getTime() - ticks) + " ticks");
+	    }
+	}
+
+	ThreadedKernel.alarm.setPreemptAlways(false);
+    }
     
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page to hold a virtual page of <i>process</i>, and
+     * enter it in the inverted page table. If there are no free pages, evict
+     * a page that is not pinned. The caller must hold <tt>pageLock</tt>, and
+     * the new page is returned pinned.
+     *
+     * @param	process	the process the page is for.
+     * @param	entry	the process's page table entry for the page.
+     * @return	the physical page number, or -1 if no page could be freed.
+     */
+    public static int allocatePage(VMProcess process, TranslationEntry entry) {
+	Lib.assertTrue(pageLock.isHeldByCurrentThread());
+
+	int ppn = getFreePage();
+	if (ppn == -1)
+	    ppn = evictPage();
+	if (ppn == -1)
+	    return -1;
+
+	invertedPageTable.insert(ppn, process, process.getProcessID(), entry);
+	invertedPageTable.pin(ppn);
+	replacementPolicy.pageLoaded(ppn);
+
+	return ppn;
+    }
+
+    /**
+     * Free a physical page allocated by <tt>allocatePage()</tt>. The caller
+     * must hold <tt>pageLock</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void freePage(int ppn) {
+	Lib.assertTrue(pageLock.isHeldByCurrentThread());
+
+	invertedPageTable.remove(ppn);
+
+	addFreePage(ppn);
+	pageAvailable.wakeAll();
+    }
+
+    /**
+     * Prevent a physical page from being evicted until a matching call to
+     * <tt>unpinPage()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void pinPage(int ppn) {
+	invertedPageTable.pin(ppn);
+    }
+
+    /**
+     * Allow a physical page pinned by <tt>pinPage()</tt> or
+     * <tt>allocatePage()</tt> to be evicted again, and wake any thread
+     * waiting for a page if it no longer is pinned.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void unpinPage(int ppn) {
+	boolean held = pageLock.isHeldByCurrentThread();
+	if (!held)
+	    pageLock.acquire();
+
+	invertedPageTable.unpin(ppn);
+	if (!invertedPageTable.isPinned(ppn))
+	    pageAvailable.wakeAll();
+
+	if (!held)
+	    pageLock.release();
+    }
+
+    /**
+     * Choose a page to evict, using the replacement policy, and take it from
+     * its owner.
+     *
+     * @return	the physical page number, or -1 if every page is pinned.
+     */
+    private static int evictPage() {
+	// the policy needs every used and dirty bit in the page tables
+	if (tlb != null)
+	    tlb.sync();
+
+	int ppn = replacementPolicy.chooseVictim();
+	if (ppn == -1)
+	    return -1;
+
+	Lib.assertTrue(invertedPageTable.getOwner(ppn) != null &&
+		       !invertedPageTable.isPinned(ppn));
+
+	Lib.debug(dbgVM, "\tevicting page " + ppn);
+
+	// pinned while it is written out, in case that blocks
+	invertedPageTable.pin(ppn);
+	invertedPageTable.getOwner(ppn).evictPage(invertedPageTable.getEntry(ppn).vpn);
+
+	invertedPageTable.remove(ppn);
+	return ppn;
+    }
+
+    /**
+     * Serializes page faults, and everything else that maps or unmaps
+     * pages.
+     */
+    public static Lock pageLock;
+    /**
+     * Signalled, with <tt>pageLock</tt> held, whenever a physical page is
+     * freed or unpinned, for page faults that found every page pinned.
+     */
+    public static Condition2 pageAvailable;
+
+    /** Globally accessible reference to the swap file. */
+    public static SwapFile swap;
+
+    /** The TLB manager, or <tt>null</tt> if the processor has no TLB. */
+    public static TLBManager tlb;
+
+    /** The owner and translation of each physical page. */
+    public static InvertedPageTable invertedPageTable;
+
+    /**
+     * The page replacement policy, given by
+     * <tt>VMKernel.replacementPolicy</tt>.
+     */
+    private static ReplacementPolicy replacementPolicy;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,22 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * A process starts with no pages in memory. Each page is loaded the first
+ * time it is touched, whether by the program or by the kernel on its behalf:
+ * COFF pages from the executable, and stack and argument pages filled with
+ * zeros.
+ *
+ * <p>
+ * To make room, the kernel can evict any page. A dirty page is written to a
+ * slot in the swap file, and is loaded from there next time. A page that has
+ * not been written since it was loaded is just dropped: a COFF page can be
+ * read from the executable again, and a page already in swap is still there.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,6 +36,9 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	if (Machine.processor().hasTLB())
+	    VMKernel.tlb.saveState(this);
     }
 
     /**
@@ -29,7 +46,12 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// with a TLB, translations are loaded as they are missed, and the TLB
+	// manager decides what survives the switch
+	if (Machine.processor().hasTLB())
+	    VMKernel.tlb.restoreState(this);
+	else
+	    super.restoreState();
     }
 
     /**
@@ -39,15 +61,206 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+	swapSlots = new int[numPages];
+	Arrays.fill(swapSlots, -1);
+
+	pageSections = new CoffSection[numPages];
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+		pageSections[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	if (Machine.processor().hasTLB())
+	    VMKernel.tlb.release(this);
+
+	VMKernel.pageLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		VMKernel.freePage(pageTable[vpn].ppn);
+		pageTable[vpn].valid = false;
+	    }
+
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swap.free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.pageLock.release();
+
+	coff.close();
+    }
+
+    /**
+     * Translate a virtual address for the kernel, first loading the page if
+     * it is not in memory. The page stays pinned in memory until
+     * <tt>unpin()</tt> is called. If every physical page is pinned, waits for
+     * one to be unpinned or freed, unless this process itself has pages
+     * pinned, which it could only release by giving up.
+     */
+    protected int translate(int vaddr, boolean write) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || pageTable == null || vpn >= pageTable.length)
+	    return -1;
+
+	TranslationEntry entry = pageTable[vpn];
+
+	VMKernel.pageLock.acquire();
+
+	if (entry.valid)
+	    VMKernel.pinPage(entry.ppn);
+	else {
+	    while (!loadPage(vpn)) {
+		if (numPinned > 0) {
+		    VMKernel.pageLock.release();
+		    return -1;
+		}
+
+		VMKernel.pageAvailable.sleep();
+	    }
+	}
+
+	numPinned++;
+
+	VMKernel.pageLock.release();
+
+	int paddr = super.translate(vaddr, write);
+	if (paddr < 0)
+	    unpin(vaddr);
+
+	return paddr;
+    }
+
+    protected void unpin(int vaddr) {
+	numPinned--;
+	VMKernel.unpinPage(pageTable[Processor.pageFromAddress(vaddr)].ppn);
+    }
+
+    /**
+     * Give up a page so that its physical page can be reused, writing it to
+     * swap first if it is dirty. Called by the kernel with <tt>pageLock</tt>
+     * held, and after the TLB has been synced.
+     *
+     * @param	vpn	the virtual page to evict.
+     */
+    public void evictPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	// invalid first, so that a TLB miss cannot put the page back
+	entry.valid = false;
+	if (Machine.processor().hasTLB())
+	    VMKernel.tlb.invalidate(this, vpn);
+
+	if (entry.dirty) {
+	    if (swapSlots[vpn] == -1)
+		swapSlots[vpn] = VMKernel.swap.allocate();
+
+	    VMKernel.swap.write(swapSlots[vpn], entry.ppn);
+	    entry.dirty = false;
+	}
+    }
+
+    /**
+     * Load a virtual page into a newly allocated physical page, counting a
+     * page fault. Called with <tt>pageLock</tt> held, and returns with the
+     * page pinned.
+     *
+     * @return	<tt>false</tt> if no physical page could be allocated.
+     */
+    private boolean loadPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+
+	int ppn = VMKernel.allocatePage(this, entry);
+	if (ppn == -1)
+	    return false;
+
+	Machine.countPageFault();
+
+	CoffSection section = pageSections[vpn];
+	if (swapSlots[vpn] != -1) {
+	    VMKernel.swap.read(swapSlots[vpn], ppn);
+	}
+	else if (section != null) {
+	    Lib.debug(dbgVM, "\tloading page " + vpn + " of " + section.getName());
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling page " + vpn);
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    Machine.processor().invalidateDecodedPage(ppn);
+	}
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = false;
+	entry.dirty = false;
+
+	return true;
+    }
+
+    /**
+     * Make sure the page containing <i>vaddr</i> is in memory, and if the
+     * machine has a TLB, that the TLB maps it. If every physical page is
+     * pinned, waits for one to be unpinned or freed.
+     *
+     * @return	<tt>false</tt> if <i>vaddr</i> is not in the address space.
+     */
+    private boolean handlePageFault(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || vpn >= numPages)
+	    return false;
+
+	// a TLB miss on a page in memory is refilled without taking pageLock.
+	// A page only becomes valid once loaded, and stops being valid as soon
+	// as it starts to be evicted, so with interrupts disabled the entry
+	// can be trusted.
+	if (Machine.processor().hasTLB()) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    boolean valid = pageTable[vpn].valid;
+	    if (valid)
+		VMKernel.tlb.fill(this, pageTable[vpn]);
+	    Machine.interrupt().restore(intStatus);
+
+	    if (valid)
+		return true;
+	}
+
+	VMKernel.pageLock.acquire();
+
+	int ppn = VMKernel.invertedPageTable.lookup(getProcessID(), vpn);
+	if (ppn == -1) {
+	    while (!loadPage(vpn))
+		VMKernel.pageAvailable.sleep();
+
+	    ppn = pageTable[vpn].ppn;
+	    VMKernel.unpinPage(ppn);
+	}
+
+	if (Machine.processor().hasTLB())
+	    VMKernel.tlb.fill(this, VMKernel.invertedPageTable.getEntry(ppn));
+
+	VMKernel.pageLock.release();
+
+	return true;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +274,30 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionPageFault:
+	case Processor.exceptionTLBMiss:
+	    if (!handlePageFault(processor.readRegister(Processor.regBadVAddr)))
+		handleFatalException(cause);
+	    break;
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
 	
+    /** The number of pages pinned by <tt>translate()</tt>. */
+    private int numPinned = 0;
+    /** The swap slot holding each virtual page, or -1. */
+    private int[] swapSlots;
+    /** The COFF section holding each virtual page, or <tt>null</tt>. */
+    private CoffSection[] pageSections;
+
+    /**
+     * The page table entries this process had in the TLB when it was last
+     * switched out, if TLB entries are tagged, or <tt>null</tt>.
+     */
+    TranslationEntry[] savedTLB = null;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
@@ -0,0 +1,71 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * The WSClock replacement policy. Like the clock policy, a hand sweeps
+ * around physical memory, but each page also records when it was last seen
+ * used. A page that has not been used for more than <tt>window</tt> ticks is
+ * out of its owner's working set, and is evicted, clean pages first.
+ *
+ * <p>
+ * The window is given by the <tt>nachos.conf</tt> key
+ * <tt>WSClockPolicy.window</tt>, in ticks. If a full sweep finds no page
+ * outside the working set, the policy evicts the least recently used page
+ * it saw.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new WSClock policy.
+     */
+    public WSClockPolicy() {
+	window = Config.getInteger("WSClockPolicy.window", 20*Stats.TimerTicks);
+	lastUsed = new long[getNumPages()];
+    }
+
+    public void pageLoaded(int ppn) {
+	lastUsed[ppn] = Machine.timer().getTime();
+    }
+
+    public int chooseVictim() {
+	int numPages = getNumPages();
+	long time = Machine.timer().getTime();
+
+	int oldestDirty = -1;
+	int leastRecent = -1;
+
+	for (int i=0; i<numPages; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numPages;
+
+	    if (!isEvictable(ppn))
+		continue;
+
+	    TranslationEntry entry = getEntry(ppn);
+	    if (entry.used) {
+		entry.used = false;
+		lastUsed[ppn] = time;
+	    }
+	    else if (time - lastUsed[ppn] > window) {
+		if (!entry.dirty)
+		    return ppn;
+
+		if (oldestDirty == -1 || lastUsed[ppn] < lastUsed[oldestDirty])
+		    oldestDirty = ppn;
+	    }
+
+	    if (leastRecent == -1 || lastUsed[ppn] < lastUsed[leastRecent])
+		leastRecent = ppn;
+	}
+
+	return (oldestDirty != -1) ? oldestDirty : leastRecent;
+    }
+
+    /** The number of ticks a page stays in the working set after use. */
+    private int window;
+    /** The time each physical page was last seen used. */
+    private long[] lastUsed;
+    private int hand = 0;
+}